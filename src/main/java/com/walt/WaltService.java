@@ -4,13 +4,27 @@ import com.walt.model.*;
 
 import java.util.Date;
 import java.util.List;
+import java.util.Map;
 
 public interface WaltService{
 
     Delivery createOrderAndAssignDriver(Customer customer, Restaurant restaurant, Date deliveryTime);
 
+    Delivery createOrderAndAssignDriver(String customerName, City city, String address,
+                                        Restaurant restaurant, Date deliveryTime);
+
     List<DriverDistance> getDriverRankReport();
 
     List<DriverDistance> getDriverRankReportByCity(City city);
+
+    Map<City, List<DriverDistance>> getDriverRankReportByAllCities();
+
+    CapacityForecast getCapacityForecast(Date from, int hours);
+
+    DistanceDistribution getDistanceDistribution();
+
+    DistanceDistribution getDistanceDistributionByCity(City city);
+
+    List<DistanceDistribution> getDriverPercentileRankReport(City city, double percentile);
 }
 
@@ -1,14 +1,28 @@
 package com.walt;
 
+import com.walt.analytics.DistanceSketch;
+import com.walt.dao.CityRepository;
 import com.walt.dao.DeliveryRepository;
 import com.walt.dao.DriverRepository;
+import com.walt.intake.AdmissionController;
+import com.walt.intake.CustomerResolver;
+import com.walt.journal.DeliveryWriteBehind;
 import com.walt.model.*;
+import com.walt.profiling.OrderStageEvent;
+import com.walt.profiling.ReportEvent;
+import com.walt.scheduling.DriverSlotLeases;
+import com.walt.scheduling.NoAvailableDriverCache;
+import com.walt.scheduling.SchedulingState;
 import org.springframework.beans.factory.annotation.Autowired;
-import org.springframework.cglib.core.CollectionUtils;
 import org.springframework.stereotype.Service;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionDefinition;
+import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionTemplate;
 
-import java.sql.Timestamp;
+import javax.annotation.PostConstruct;
 import java.util.*;
+import java.util.function.Supplier;
 
 @Service
 public class WaltServiceImpl implements WaltService {
@@ -20,16 +34,51 @@ public class WaltServiceImpl implements WaltService {
             "ERROR : The customer and restaurant are in the different cities";
     protected static final String ERROR_MSG_BAD_ARGS =
             "ERROR : An invalid input was provided to this method";
+    protected static final String ERROR_MSG_CITY_OVERLOADED =
+            "ERROR : Too many orders in this city right now, please try again later";
+    protected static final int MAX_FORECAST_HOURS = 7 * 24;
 
+    @Autowired
+    private CityRepository cityRepository;
     @Autowired
     private DriverRepository driverRepository;
     @Autowired
     private DeliveryRepository deliveryRepository;
+    @Autowired
+    private SchedulingState schedulingState;
+    @Autowired
+    private DeliveryWriteBehind deliveryWriteBehind;
+    @Autowired
+    private NoAvailableDriverCache noAvailableDriverCache;
+    @Autowired
+    private DriverSlotLeases driverSlotLeases;
+    @Autowired
+    private CustomerResolver customerResolver;
+    @Autowired
+    private AdmissionController admissionController;
+    @Autowired
+    private PlatformTransactionManager transactionManager;
+
+    private TransactionTemplate orderTransaction;
+
+    @PostConstruct
+    public void init() {
+        orderTransaction = new TransactionTemplate(transactionManager);
+        orderTransaction.setIsolationLevel(TransactionDefinition.ISOLATION_READ_COMMITTED);
+    }
 
     /**
      * this method creates an order for a given customer from a given restaurant in a given time. If
      * there is not an available driver at that time in the customer's city, a run time exception
      * is being thrown.
+     * <p>
+     * The input and the no available driver cache are checked first, without a database
+     * connection. The order must then be admitted by the city's admission control, or it is shed
+     * at once with a run time exception. Reading the drivers and saving the delivery run in one
+     * read committed transaction, sharing a single connection and persistence context. When
+     * driver slot leases or write-behind are enabled the driver is reserved and claimed first,
+     * and only the save runs in the order transaction, so an order never holds two connections
+     * at once.
      *
      * @param customer
      * @param restaurant
@@ -40,10 +89,142 @@ public class WaltServiceImpl implements WaltService {
     public Delivery createOrderAndAssignDriver(Customer customer, Restaurant restaurant,
                                                Date deliveryTime) {
         validateInput(customer, restaurant, deliveryTime);
+        rejectIfFullyBooked(restaurant.getCity(), deliveryTime);
+        return admitAndAssignDriver(() -> customer, restaurant, deliveryTime);
+    }
+
+    /**
+     * this method creates an order for a customer given by name, city and address, as placed by
+     * customers who may not exist in the system yet. The customer is found, or created on its
+     * first order, once the order passed the input and no available driver cache checks and was
+     * admitted, so a rejected or shed order does not create a customer. The address is
+     * required, since it identifies the customer along with the name and city.
+     *
+     * @param customerName
+     * @param city
+     * @param address
+     * @param restaurant
+     * @param deliveryTime
+     * @return
+     */
+    @Override
+    public Delivery createOrderAndAssignDriver(String customerName, City city, String address,
+                                               Restaurant restaurant, Date deliveryTime) {
+        if (customerName == null || city == null || address == null || restaurant == null ||
+                deliveryTime == null) {
+            throw new RuntimeException(String.format(ERROR_MSG_BAD_ARGS));
+        }
+        if (!city.getId().equals(restaurant.getCity().getId())) {
+            throw new RuntimeException(String.format(ERROR_MSG_DIFF_CITY));
+        }
+        rejectIfFullyBooked(restaurant.getCity(), deliveryTime);
+        return admitAndAssignDriver(() -> customerResolver.resolve(customerName, city, address),
+                restaurant, deliveryTime);
+    }
+
+    /**
+     * this method runs an order which passed the input and no available driver cache checks, if
+     * the city's admission control admits it. An order above the city's limit is shed at once,
+     * before it takes a database connection.
+     *
+     * @param customer supplies the ordering customer once the order is admitted
+     * @param restaurant
+     * @param deliveryTime
+     * @return
+     */
+    private Delivery admitAndAssignDriver(Supplier<Customer> customer, Restaurant restaurant,
+                                          Date deliveryTime) {
+        AdmissionController.Permit permit = admissionController.tryAcquire(restaurant.getCity());
+        if (permit == null) {
+            throw new RuntimeException(String.format(ERROR_MSG_CITY_OVERLOADED));
+        }
+        try {
+            Customer orderingCustomer = customer.get();
+            if (!driverSlotLeases.isEnabled() && !deliveryWriteBehind.isEnabled()) {
+                return orderTransaction.execute(status -> saveDelivery(
+                        reserveDriver(restaurant, deliveryTime), orderingCustomer, restaurant,
+                        deliveryTime));
+            }
+            return assignReservedDriver(orderingCustomer, restaurant, deliveryTime);
+        } finally {
+            permit.release();
+        }
+    }
+
+    /**
+     * this method reserves and claims the most less busy available driver before the delivery is
+     * saved, since claiming a driver slot lease takes a connection of its own. The delivery is
+     * then saved in the order transaction, or appended to the journal in write-behind mode. If
+     * saving fails, the reservation and the lease are given back.
+     *
+     * @param customer
+     * @param restaurant
+     * @param deliveryTime
+     * @return
+     */
+    private Delivery assignReservedDriver(Customer customer, Restaurant restaurant,
+                                          Date deliveryTime) {
+        SchedulingState.Reservation reservation = reserveDriver(restaurant, deliveryTime);
+        try {
+            if (deliveryWriteBehind.isEnabled()) {
+                return saveDelivery(reservation, customer, restaurant, deliveryTime);
+            }
+            return orderTransaction.execute(status ->
+                    saveDelivery(reservation, customer, restaurant, deliveryTime));
+        } catch (RuntimeException e) {
+            reservation.cancel();
+            driverSlotLeases.release(reservation.getDriver().getId(), deliveryTime);
+            throw e;
+        }
+    }
+
+    /**
+     * this method reserves the most less busy available driver for a new delivery
+     *
+     * @param restaurant
+     * @param deliveryTime
+     * @return
+     */
+    private SchedulingState.Reservation reserveDriver(Restaurant restaurant, Date deliveryTime) {
         List<Driver> availableDrivers = searchForAvailableDrivers(restaurant, deliveryTime);
-        Driver driver = getMostLessBusyDriver(availableDrivers);
-        Delivery delivery = new Delivery(driver, restaurant, customer, deliveryTime);
-        deliveryRepository.save(delivery);
+        return reserveMostLessBusyDriver(availableDrivers, deliveryTime);
+    }
+
+    /**
+     * this method saves a new delivery of a reserved driver. The delivery is recorded in the
+     * scheduling state once it is committed, and the reservation is given up if it is not.
+     *
+     * @param reservation
+     * @param customer
+     * @param restaurant
+     * @param deliveryTime
+     * @return
+     */
+    private Delivery saveDelivery(SchedulingState.Reservation reservation, Customer customer,
+                                  Restaurant restaurant, Date deliveryTime) {
+        Delivery delivery = new Delivery(reservation.getDriver(), restaurant, customer,
+                deliveryTime);
+        OrderStageEvent event = OrderStageEvent.start(OrderStageEvent.DELIVERY_SAVE,
+                restaurant.getCity());
+        schedulingState.persistAndRecord(reservation, delivery, this::persist);
+        event.finish(1, 0);
+        return delivery;
+    }
+
+    /**
+     * this method saves a new delivery. In write-behind mode the delivery is appended to the
+     * delivery journal instead, and it is saved to the database asynchronously; its id is
+     * assigned only then.
+     *
+     * @param delivery
+     * @return
+     */
+    private Delivery persist(Delivery delivery) {
+        if (deliveryWriteBehind.isEnabled()) {
+            deliveryWriteBehind.submit(delivery);
+        } else {
+            deliveryRepository.save(delivery);
+        }
         return delivery;
     }
 
@@ -56,6 +237,22 @@ public class WaltServiceImpl implements WaltService {
         }
     }
 
+    /**
+     * this method fails an order right away, without reading the drivers, if its slot is known to
+     * be fully booked in the city
+     *
+     * @param city
+     * @param deliveryTime
+     */
+    private void rejectIfFullyBooked(City city, Date deliveryTime) {
+        OrderStageEvent cacheEvent = OrderStageEvent.start(OrderStageEvent.CACHED_REJECTION,
+                city);
+        if (noAvailableDriverCache.isFullyBooked(city.getId(), deliveryTime)) {
+            cacheEvent.finish(0, 0);
+            throw new RuntimeException(String.format(ERROR_MSG_NO_AVAILABLE_DRIVERS));
+        }
+    }
+
     /**
      * this method creates a list of all the drivers who is available at deliveryTime
      *
@@ -64,56 +261,86 @@ public class WaltServiceImpl implements WaltService {
      * @return a list of all available drivers
      */
     private List<Driver> searchForAvailableDrivers(Restaurant restaurant, Date deliveryTime) {
+        City city = restaurant.getCity();
+        Long cityId = city.getId();
+        long cityVersion = noAvailableDriverCache.getVersion(cityId);
+
+        OrderStageEvent lookupEvent = OrderStageEvent.start(OrderStageEvent.DRIVER_LOOKUP, city);
+        List<Driver> cityDrivers = driverRepository.findAllDriversByCity(city);
+        lookupEvent.finish(cityDrivers.size(), cityDrivers.size());
+
+        OrderStageEvent scanEvent = OrderStageEvent.start(OrderStageEvent.AVAILABILITY_SCAN,
+                city);
         List<Driver> availableDrivers = new ArrayList<>();
-        for (Driver driver : driverRepository.findAllDriversByCity(restaurant.getCity())) {
+        for (Driver driver : cityDrivers) {
             if (checkIfDriverIsAvailable(deliveryTime, driver)) {
                 availableDrivers.add(driver);
             }
         }
+        scanEvent.finish(availableDrivers.size(),
+                schedulingState.isRetained(deliveryTime) ? 0 : cityDrivers.size());
         if (availableDrivers.isEmpty()) {
+            noAvailableDriverCache.markFullyBooked(cityId, deliveryTime, cityVersion,
+                    cityDrivers.size());
             throw new RuntimeException(String.format(ERROR_MSG_NO_AVAILABLE_DRIVERS));
         }
         return availableDrivers;
     }
 
     /**
-     * this method checks if a driver is available at deliveryTime. It does so by checking the
-     * list of all the deliveries of the given driver and filtering any delivery which has a
-     * different delivery time then the one were checking. This way- if we are left with an empty
-     * list we know he has no delivery at deliveryTime, aka - he is free.
+     * this method checks if a driver is available at deliveryTime. Each delivery takes a full
+     * hour, so the driver is free if he/she has no delivery in the same hour slot. The check is
+     * answered from the in-memory scheduling state instead of the driver's delivery history.
      *
      * @param deliveryTime
      * @param driver
      * @return
      */
     private boolean checkIfDriverIsAvailable(Date deliveryTime, Driver driver) {
-        return CollectionUtils.filter(deliveryRepository.findDeliveriesByDriver(driver),
-                d -> ((Delivery) d).getDeliveryTime().equals(
-                        new Timestamp(deliveryTime.getTime()))).isEmpty();
+        return schedulingState.isAvailable(driver, deliveryTime);
     }
 
     /**
-     * this method returns the most less busy driver by sorting all the available drivers list by
-     * the distance of their deliveries.
+     * this method reserves the most less busy driver by sorting all the available drivers list by
+     * the distance of their deliveries. A driver already reserved by a concurrent order is
+     * skipped for the next one. When driver slot leases are enabled the reserved driver is also
+     * claimed, and a driver already claimed by another order, possibly on another node, is
+     * skipped as well.
      *
      * @param availableDrivers
+     * @param deliveryTime
      * @return
      */
-    private Driver getMostLessBusyDriver(List<Driver> availableDrivers) {
-        Collections.sort(availableDrivers, Comparator.comparingDouble(this::getDriverTotalKM));
-        return availableDrivers.get(LESS_BUSY_DRIVER_IDX);
+    private SchedulingState.Reservation reserveMostLessBusyDriver(List<Driver> availableDrivers,
+                                                                  Date deliveryTime) {
+        OrderStageEvent event = OrderStageEvent.start(OrderStageEvent.DRIVER_RANKING,
+                availableDrivers.get(LESS_BUSY_DRIVER_IDX).getCity());
+        Collections.sort(availableDrivers,
+                Comparator.comparingLong(this::getDriverTotalDistanceMeters));
+        event.finish(availableDrivers.size(), 0);
+        for (Driver driver : availableDrivers) {
+            SchedulingState.Reservation reservation = schedulingState.tryReserve(driver,
+                    deliveryTime);
+            if (reservation == null) {
+                continue;
+            }
+            if (!driverSlotLeases.isEnabled() ||
+                    driverSlotLeases.tryClaim(driver.getId(), deliveryTime)) {
+                return reservation;
+            }
+            reservation.cancel();
+        }
+        throw new RuntimeException(String.format(ERROR_MSG_NO_AVAILABLE_DRIVERS));
     }
 
     /**
-     * this method returns a driver total distance in km
+     * this method returns a driver total distance in meters
      *
      * @param driver
      * @return
      */
-    private double getDriverTotalKM(Driver driver) {
-        return deliveryRepository.findDeliveriesByDriver(driver).stream()
-                .mapToDouble(Delivery::getDistance)
-                .sum();
+    private long getDriverTotalDistanceMeters(Driver driver) {
+        return schedulingState.getTotalDistanceMeters(driver);
     }
 
     /***
@@ -121,8 +348,12 @@ public class WaltServiceImpl implements WaltService {
      * @return
      */
     @Override
+    @Transactional(readOnly = true)
     public List<DriverDistance> getDriverRankReport() {
-        return deliveryRepository.findAllDistancesByDriver();
+        ReportEvent event = ReportEvent.start("driverRankReport", null);
+        List<DriverDistance> report = deliveryRepository.findAllDistancesByDriver();
+        event.finish(report.size());
+        return report;
     }
 
     /**
@@ -133,7 +364,148 @@ public class WaltServiceImpl implements WaltService {
      * @return
      */
     @Override
+    @Transactional(readOnly = true)
     public List<DriverDistance> getDriverRankReportByCity(City city) {
-        return deliveryRepository.findAllCityDistancesByDriver(city);
+        ReportEvent event = ReportEvent.start("driverRankReportByCity", city);
+        List<DriverDistance> report = deliveryRepository.findAllCityDistancesByDriver(city);
+        event.finish(report.size());
+        return report;
+    }
+
+    /**
+     * this method returns the drivers rank report of every city, each list ordered by total
+     * distance in descending order. All the cities are covered by a single grouped query over
+     * the drivers, which is then split by the driver's city, so the cost does not depend on the
+     * number of cities. Cities without deliveries get an empty list.
+     *
+     * @return
+     */
+    @Override
+    @Transactional(readOnly = true)
+    public Map<City, List<DriverDistance>> getDriverRankReportByAllCities() {
+        ReportEvent event = ReportEvent.start("driverRankReportByAllCities", null);
+        Map<City, List<DriverDistance>> report = new TreeMap<>(Comparator.comparing(City::getId));
+        for (City city : cityRepository.findAll()) {
+            report.put(city, new ArrayList<>());
+        }
+        int cities = report.size();
+        List<DriverDistance> driverDistances = deliveryRepository.findAllDistancesByDriver();
+        for (DriverDistance driverDistance : driverDistances) {
+            City city = driverDistance.getDriver().getCity();
+            if (city != null) {
+                report.computeIfAbsent(city, c -> new ArrayList<>()).add(driverDistance);
+            }
+        }
+        event.finish(cities + driverDistances.size());
+        return report;
+    }
+
+    /**
+     * this method returns the number of free drivers per city for each hour from the full hour of
+     * the given time, over the given number of hours. It is computed in one pass: the drivers
+     * are counted per city with a single grouped query, and the deliveries inside the horizon
+     * are read with a single range query, each one taking its driver out of the free count of
+     * his/her city for that hour.
+     *
+     * @param from
+     * @param hours
+     * @return
+     */
+    @Override
+    @Transactional(readOnly = true)
+    public CapacityForecast getCapacityForecast(Date from, int hours) {
+        if (from == null || hours <= 0 || hours > MAX_FORECAST_HOURS) {
+            throw new RuntimeException(String.format(ERROR_MSG_BAD_ARGS));
+        }
+        ReportEvent event = ReportEvent.start("capacityForecast", null);
+        long startSlot = SchedulingState.toSlot(from);
+        Date start = SchedulingState.slotStart(startSlot);
+        Date end = SchedulingState.slotStart(startSlot + hours);
+
+        Map<Long, int[]> freeDriversByCity = new HashMap<>();
+        List<CityDriverCount> driverCounts = driverRepository.countDriversByCity();
+        for (CityDriverCount count : driverCounts) {
+            int[] freeDrivers = new int[hours];
+            Arrays.fill(freeDrivers, count.getDrivers().intValue());
+            freeDriversByCity.put(count.getCityId(), freeDrivers);
+        }
+        Set<Long> busyDriverHours = new HashSet<>();
+        List<DriverDeliveryTime> deliveries = deliveryRepository.findDeliveryTimesBetween(start,
+                end);
+        for (DriverDeliveryTime delivery : deliveries) {
+            int hour = (int) (SchedulingState.toSlot(delivery.getDeliveryTime()) - startSlot);
+            int[] freeDrivers = freeDriversByCity.get(delivery.getCityId());
+            if (freeDrivers != null && freeDrivers[hour] > 0 &&
+                    busyDriverHours.add(delivery.getDriverId() * hours + hour)) {
+                freeDrivers[hour]--;
+            }
+        }
+
+        List<City> cities = new ArrayList<>();
+        cityRepository.findAll().forEach(cities::add);
+        event.finish(driverCounts.size() + deliveries.size() + cities.size());
+        return new CapacityForecast(start, hours, cities, freeDriversByCity);
+    }
+
+    /**
+     * this method returns the distribution of the distances of all the deliveries, merged from
+     * the distance sketches of the cities
+     *
+     * @return
+     */
+    @Override
+    public DistanceDistribution getDistanceDistribution() {
+        ReportEvent event = ReportEvent.start("distanceDistribution", null);
+        DistanceSketch sketch = schedulingState.getGlobalSketch();
+        event.finish(0);
+        return new DistanceDistribution(null, null, sketch);
+    }
+
+    /**
+     * this method returns the distribution of the distances of the deliveries in a given city
+     *
+     * @param city
+     * @return
+     */
+    @Override
+    public DistanceDistribution getDistanceDistributionByCity(City city) {
+        if (city == null) {
+            throw new RuntimeException(String.format(ERROR_MSG_BAD_ARGS));
+        }
+        ReportEvent event = ReportEvent.start("distanceDistributionByCity", city);
+        DistanceSketch sketch = schedulingState.getCitySketch(city.getId());
+        event.finish(0);
+        return new DistanceDistribution(null, city, sketch);
+    }
+
+    /**
+     * this method ranks the drivers of a given city, or of all the cities if city is null, by the
+     * given percentile of their delivery distances in descending order. The percentiles are read
+     * from the in-memory sketch of each driver, so only the drivers are read from the database.
+     *
+     * @param city
+     * @param percentile between 0 and 100, e.g. 50 for the median trip or 95 for the long ones
+     * @return
+     */
+    @Override
+    @Transactional(readOnly = true)
+    public List<DistanceDistribution> getDriverPercentileRankReport(City city,
+                                                                    double percentile) {
+        if (percentile < 0 || percentile > 100) {
+            throw new RuntimeException(String.format(ERROR_MSG_BAD_ARGS));
+        }
+        ReportEvent event = ReportEvent.start("driverPercentileRankReport", city);
+        Iterable<Driver> drivers = city == null ? driverRepository.findAll() :
+                driverRepository.findAllDriversByCity(city);
+        List<DistanceDistribution> report = new ArrayList<>();
+        for (Driver driver : drivers) {
+            report.add(new DistanceDistribution(driver, driver.getCity(),
+                    schedulingState.getDriverSketch(driver.getId())));
+        }
+        report.sort(Comparator.comparingDouble(
+                (DistanceDistribution distribution) -> distribution.getPercentile(percentile))
+                .reversed());
+        event.finish(report.size());
+        return report;
     }
 }
@@ -0,0 +1,136 @@
+package com.walt.analytics;
+
+import java.nio.ByteBuffer;
+
+/**
+ * a streaming summary of delivery distances that answers percentile queries in constant memory.
+ * <p>
+ * Delivery distances are bounded (0-20 km), so instead of a t-digest the sketch is a fixed width
+ * histogram of 100 m buckets, with one more bucket for anything longer. A percentile is accurate
+ * to half a bucket, sketches merge exactly by adding their buckets, and unlike a t-digest a
+ * delivery can be taken out again when it is cancelled or moved. Distances are in meters.
+ */
+public class DistanceSketch {
+
+    public static final int BUCKET_WIDTH_METERS = 100;
+    public static final int MAX_TRACKED_METERS = 20000;
+
+    static final int BUCKETS = MAX_TRACKED_METERS / BUCKET_WIDTH_METERS + 1;
+
+    private final long[] counts = new long[BUCKETS];
+    private long count;
+
+    public synchronized void add(int distanceMeters) {
+        counts[bucket(distanceMeters)]++;
+        count++;
+    }
+
+    public synchronized void remove(int distanceMeters) {
+        int bucket = bucket(distanceMeters);
+        if (counts[bucket] > 0) {
+            counts[bucket]--;
+            count--;
+        }
+    }
+
+    /**
+     * this method adds all the distances of another sketch to this one
+     *
+     * @param other
+     */
+    public void merge(DistanceSketch other) {
+        DistanceSketch source = other.copy();
+        synchronized (this) {
+            for (int i = 0; i < BUCKETS; i++) {
+                counts[i] += source.counts[i];
+            }
+            count += source.count;
+        }
+    }
+
+    public synchronized DistanceSketch copy() {
+        DistanceSketch copy = new DistanceSketch();
+        System.arraycopy(counts, 0, copy.counts, 0, BUCKETS);
+        copy.count = count;
+        return copy;
+    }
+
+    public synchronized long getCount() {
+        return count;
+    }
+
+    /**
+     * this method returns the distance below which the given percentage of the distances fall.
+     * Distances beyond the tracked range are reported as MAX_TRACKED_METERS.
+     *
+     * @param percentile between 0 and 100
+     * @return the distance in meters, or 0 if the sketch is empty
+     */
+    public synchronized int getPercentileMeters(double percentile) {
+        if (count == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(percentile / 100 * count));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts[i];
+            if (seen >= rank) {
+                return i == BUCKETS - 1 ? MAX_TRACKED_METERS :
+                        i * BUCKET_WIDTH_METERS + BUCKET_WIDTH_METERS / 2;
+            }
+        }
+        return MAX_TRACKED_METERS;
+    }
+
+    /**
+     * @return the number of bytes writeTo will use
+     */
+    public synchronized int getSerializedSize() {
+        int size = 4;
+        for (long bucketCount : counts) {
+            if (bucketCount > 0) {
+                size += 4 + 8;
+            }
+        }
+        return size;
+    }
+
+    /**
+     * this method writes the non empty buckets as (index, count) pairs, preceded by their number
+     *
+     * @param buffer
+     */
+    public synchronized void writeTo(ByteBuffer buffer) {
+        int nonEmpty = 0;
+        for (long bucketCount : counts) {
+            if (bucketCount > 0) {
+                nonEmpty++;
+            }
+        }
+        buffer.putInt(nonEmpty);
+        for (int i = 0; i < BUCKETS; i++) {
+            if (counts[i] > 0) {
+                buffer.putInt(i).putLong(counts[i]);
+            }
+        }
+    }
+
+    public static DistanceSketch readFrom(ByteBuffer buffer) {
+        DistanceSketch sketch = new DistanceSketch();
+        int nonEmpty = buffer.getInt();
+        for (int i = 0; i < nonEmpty; i++) {
+            int bucket = buffer.getInt();
+            long bucketCount = buffer.getLong();
+            sketch.counts[bucket] = bucketCount;
+            sketch.count += bucketCount;
+        }
+        return sketch;
+    }
+
+    private static int bucket(int distanceMeters) {
+        if (distanceMeters <= 0) {
+            return 0;
+        }
+        return Math.min(BUCKETS - 1, distanceMeters / BUCKET_WIDTH_METERS);
+    }
+}
@@ -1,10 +1,20 @@
 package com.walt.dao;
 
+import com.walt.model.City;
 import com.walt.model.Customer;
+import com.walt.model.NamedEntityId;
+import org.springframework.data.jpa.repository.Query;
 import org.springframework.data.repository.CrudRepository;
 import org.springframework.stereotype.Repository;
 
+import java.util.List;
+
 @Repository
 public interface CustomerRepository extends CrudRepository<Customer, Long> {
     Customer findByName(String name);
+
+    Customer findFirstByNameAndCityAndAddress(String name, City city, String address);
+
+    @Query("SELECT c.id AS id, c.name AS name, c.city.id AS cityId FROM Customer c")
+    List<NamedEntityId> findAllNamedIds();
 }
@@ -3,27 +3,59 @@ package com.walt.dao;
 import com.walt.model.City;
 import com.walt.model.Driver;
 import com.walt.model.Delivery;
+import com.walt.model.DeliverySlot;
+import com.walt.model.DriverDeliveryTime;
 import com.walt.model.DriverDistance;
+import org.springframework.data.domain.Pageable;
 import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.jpa.repository.QueryHints;
 import org.springframework.data.repository.CrudRepository;
 import org.springframework.data.repository.query.Param;
 import org.springframework.stereotype.Repository;
 
+import javax.persistence.QueryHint;
 import java.util.Date;
 import java.util.List;
 
+import static org.hibernate.jpa.QueryHints.HINT_READONLY;
+
 @Repository
 public interface DeliveryRepository extends CrudRepository<Delivery, Long> {
 
     List<Delivery> findDeliveriesByDriver(Driver driver);
 
-    @Query("SELECT d.driver AS driver, SUM(d.distance) AS totalDistance FROM Delivery d GROUP BY" +
-            " d.driver ORDER BY totalDistance DESC")
+    boolean existsByDriverIdAndDeliveryTime(Long driverId, Date deliveryTime);
+
+    @QueryHints(@QueryHint(name = HINT_READONLY, value = "true"))
+    @Query("SELECT d.driver AS driver, SUM(d.distanceMeters) AS totalDistanceMeters FROM " +
+            "Delivery d GROUP BY d.driver ORDER BY totalDistanceMeters DESC")
     List<DriverDistance> findAllDistancesByDriver();
 
-    @Query("SELECT d.driver AS driver, SUM(d.distance) AS totalDistance FROM Delivery d WHERE " +
-            "d.driver.city =:chosenCity GROUP BY d.driver ORDER BY totalDistance DESC")
+    @QueryHints(@QueryHint(name = HINT_READONLY, value = "true"))
+    @Query("SELECT d.driver AS driver, SUM(d.distanceMeters) AS totalDistanceMeters FROM " +
+            "Delivery d WHERE d.driver.city =:chosenCity GROUP BY d.driver ORDER BY " +
+            "totalDistanceMeters DESC")
     List<DriverDistance> findAllCityDistancesByDriver(@Param("chosenCity") City city);
+
+    @Query("SELECT d.id AS id, d.driver.id AS driverId, d.driver.city.id AS cityId, " +
+            "d.deliveryTime AS deliveryTime, d.distanceMeters AS distanceMeters FROM Delivery d " +
+            "WHERE d.id >:lastId ORDER BY d.id")
+    List<DeliverySlot> findDeliverySlotsAfter(@Param("lastId") Long lastId, Pageable pageable);
+
+    @QueryHints(@QueryHint(name = HINT_READONLY, value = "true"))
+    @Query("SELECT d.driver.city.id AS cityId, d.driver.id AS driverId, d.deliveryTime AS " +
+            "deliveryTime FROM Delivery d WHERE d.deliveryTime >=:fromTime AND d.deliveryTime " +
+            "<:toTime")
+    List<DriverDeliveryTime> findDeliveryTimesBetween(@Param("fromTime") Date from,
+                                                      @Param("toTime") Date to);
+
+    @Query("SELECT COUNT(d) FROM Delivery d WHERE d.driver.id =:driverId AND d.deliveryTime " +
+            ">=:fromTime AND d.deliveryTime <:toTime")
+    long countDriverDeliveriesBetween(@Param("driverId") Long driverId,
+                                      @Param("fromTime") Date from, @Param("toTime") Date to);
+
+    @Query("SELECT MAX(d.id) FROM Delivery d")
+    Long findMaxId();
 }
 
 
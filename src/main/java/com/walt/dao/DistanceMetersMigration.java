@@ -0,0 +1,97 @@
+package com.walt.dao;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.autoconfigure.data.jpa.EntityManagerFactoryDependsOnPostProcessor;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.support.JdbcUtils;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.sql.DataSource;
+import java.sql.Connection;
+import java.sql.DatabaseMetaData;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Set;
+
+/**
+ * this class moves deliveries written before distances were stored in meters to the new
+ * distance_meters column. If the delivery table still has the old distance column (km as a
+ * double), the distances are converted to whole meters and the old column is dropped. It runs
+ * before the entity manager factory starts, so the schema is migrated before hibernate
+ * validates or updates it, and does nothing on a database that is already migrated or empty.
+ */
+@Component
+public class DistanceMetersMigration {
+
+    private static final Logger log = LoggerFactory.getLogger(DistanceMetersMigration.class);
+
+    protected static final String DELIVERY_TABLE = "delivery";
+    protected static final String OLD_COLUMN = "distance";
+    protected static final String NEW_COLUMN = "distance_meters";
+
+    @Autowired
+    private DataSource dataSource;
+    @Autowired
+    private JdbcTemplate jdbcTemplate;
+
+    @PostConstruct
+    public void migrate() throws SQLException {
+        Set<String> columns = getDeliveryColumns();
+        if (!columns.contains(OLD_COLUMN)) {
+            return;
+        }
+        long start = System.currentTimeMillis();
+        if (!columns.contains(NEW_COLUMN)) {
+            jdbcTemplate.execute("ALTER TABLE " + DELIVERY_TABLE + " ADD COLUMN " + NEW_COLUMN +
+                    " INTEGER DEFAULT 0 NOT NULL");
+        }
+        int migrated = jdbcTemplate.update("UPDATE " + DELIVERY_TABLE + " SET " + NEW_COLUMN +
+                " = ROUND(" + OLD_COLUMN + " * 1000)");
+        jdbcTemplate.execute("ALTER TABLE " + DELIVERY_TABLE + " DROP COLUMN " + OLD_COLUMN);
+        log.info("Migrated {} delivery distances from km to meters in {} ms", migrated,
+                System.currentTimeMillis() - start);
+    }
+
+    /**
+     * @return the lower case names of the columns of the delivery table, empty if there is no
+     * such table yet
+     * @throws SQLException
+     */
+    private Set<String> getDeliveryColumns() throws SQLException {
+        Set<String> columns = new HashSet<>();
+        Connection connection = dataSource.getConnection();
+        ResultSet resultSet = null;
+        try {
+            DatabaseMetaData metaData = connection.getMetaData();
+            String table = metaData.storesUpperCaseIdentifiers() ?
+                    DELIVERY_TABLE.toUpperCase(Locale.ROOT) : DELIVERY_TABLE;
+            resultSet = metaData.getColumns(connection.getCatalog(), null, table, null);
+            while (resultSet.next()) {
+                columns.add(resultSet.getString("COLUMN_NAME").toLowerCase(Locale.ROOT));
+            }
+        } finally {
+            JdbcUtils.closeResultSet(resultSet);
+            JdbcUtils.closeConnection(connection);
+        }
+        return columns;
+    }
+
+    /**
+     * makes the entity manager factory wait for the migration
+     */
+    @Configuration
+    static class EntityManagerFactoryDependency {
+
+        @Bean
+        static EntityManagerFactoryDependsOnPostProcessor distanceMetersMigrationDependency() {
+            return new EntityManagerFactoryDependsOnPostProcessor("distanceMetersMigration");
+        }
+    }
+}
@@ -1,13 +1,20 @@
 package com.walt.dao;
 
 import com.walt.model.City;
+import com.walt.model.CityDriverCount;
 import com.walt.model.Driver;
 import com.walt.model.DriverDistance;
+import com.walt.model.NamedEntityId;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.jpa.repository.QueryHints;
 import org.springframework.data.repository.CrudRepository;
 import org.springframework.stereotype.Repository;
 
+import javax.persistence.QueryHint;
 import java.util.List;
 
+import static org.hibernate.jpa.QueryHints.HINT_READONLY;
+
 @Repository
 public interface DriverRepository extends CrudRepository<Driver,Long> {
 
@@ -15,4 +22,10 @@ public interface DriverRepository extends CrudRepository<Driver,Long> {
 
     Driver findByName(String name);
 
+    @QueryHints(@QueryHint(name = HINT_READONLY, value = "true"))
+    @Query("SELECT d.city.id AS cityId, COUNT(d) AS drivers FROM Driver d GROUP BY d.city.id")
+    List<CityDriverCount> countDriversByCity();
+
+    @Query("SELECT d.id AS id, d.name AS name, d.city.id AS cityId FROM Driver d")
+    List<NamedEntityId> findAllNamedIds();
 }
@@ -1,10 +1,17 @@
 package com.walt.dao;
 
+import com.walt.model.NamedEntityId;
 import com.walt.model.Restaurant;
+import org.springframework.data.jpa.repository.Query;
 import org.springframework.data.repository.CrudRepository;
 import org.springframework.stereotype.Repository;
 
+import java.util.List;
+
 @Repository
 public interface RestaurantRepository extends CrudRepository<Restaurant, Long> {
     Restaurant findByName(String name);
+
+    @Query("SELECT r.id AS id, r.name AS name, r.city.id AS cityId FROM Restaurant r")
+    List<NamedEntityId> findAllNamedIds();
 }
@@ -0,0 +1,48 @@
+package com.walt.importer;
+
+/**
+ * the outcome of a bulk delivery import
+ */
+public class DeliveryImportResult {
+
+    private final long imported;
+    private final long skipped;
+    private final long ambiguous;
+    private final long elapsedMillis;
+
+    public DeliveryImportResult(long imported, long skipped, long ambiguous,
+                                long elapsedMillis) {
+        this.imported = imported;
+        this.skipped = skipped;
+        this.ambiguous = ambiguous;
+        this.elapsedMillis = elapsedMillis;
+    }
+
+    public long getImported() {
+        return imported;
+    }
+
+    /**
+     * @return the number of rows which could not be parsed, referenced an unknown driver,
+     * restaurant or customer, or could not be resolved to a single one of them
+     */
+    public long getSkipped() {
+        return skipped;
+    }
+
+    /**
+     * @return the number of skipped rows whose names match more than one driver, restaurant or
+     * customer
+     */
+    public long getAmbiguous() {
+        return ambiguous;
+    }
+
+    public long getElapsedMillis() {
+        return elapsedMillis;
+    }
+
+    public double getRowsPerSecond() {
+        return (imported + skipped) * 1000.0 / Math.max(1, elapsedMillis);
+    }
+}
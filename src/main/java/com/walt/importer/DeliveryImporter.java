@@ -0,0 +1,446 @@
+package com.walt.importer;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.walt.dao.CustomerRepository;
+import com.walt.dao.DriverRepository;
+import com.walt.dao.RestaurantRepository;
+import com.walt.model.NamedEntityId;
+import com.walt.scheduling.NoAvailableDriverCache;
+import com.walt.scheduling.SchedulingState;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.SmartLifecycle;
+import org.springframework.jdbc.core.ConnectionCallback;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.sql.Timestamp;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * this class bulk loads historical deliveries from a CSV or NDJSON file, e.g. when a new city is
+ * onboarded or a test environment is rebuilt. Each row names its driver, restaurant and customer,
+ * and has a delivery time (epoch millis or an ISO-8601 instant) and a distance in meters:
+ * <pre>
+ * driver,restaurant,customer,deliveryTime,distanceMeters
+ * Mary,cafe,Bach,2020-11-01T12:00:00Z,3200
+ * </pre>
+ * or, in a .ndjson (or .jsonl) file, one object per line with the same fields.
+ * <p>
+ * The file is streamed line by line, names are resolved through id maps read once up front, and
+ * rows are inserted with plain JDBC batches, so memory does not grow with the file. On H2 the
+ * referential integrity checks and the delivery time index are suspended for the duration of
+ * the import. The scheduling state and the no available driver cache are rebuilt once at the
+ * end, also when the import fails partway, since the batches inserted until then stay. The
+ * import bypasses order intake and suspends integrity checks for the whole database, so it is
+ * meant to run while the node takes no orders.
+ * <p>
+ * Names are resolved within a city: a row is imported when there is exactly one city with a
+ * driver, a restaurant and a customer of its names. Rows referencing an unknown name, or names
+ * which are not all in one city, are skipped. Rows whose names match several drivers,
+ * restaurants or customers of a city, or match in several cities, are skipped and counted as
+ * ambiguous.
+ * <p>
+ * An import runs on startup when "walt.import.file" is set, in a lifecycle phase before the web
+ * server starts, so no order is taken until it is done.
+ */
+@Component
+public class DeliveryImporter implements SmartLifecycle {
+
+    private static final Logger log = LoggerFactory.getLogger(DeliveryImporter.class);
+    private static final ObjectMapper objectMapper = new ObjectMapper();
+
+    protected static final String ERROR_MSG_IMPORT_FORMAT =
+            "ERROR : Unsupported import file %s, expected a .csv or .ndjson file";
+    protected static final String ERROR_MSG_IMPORT_HEADER =
+            "ERROR : The import file %s must start with a header naming the columns %s";
+    protected static final String INSERT_DELIVERY = "INSERT INTO delivery (id, driver_id, " +
+            "restaurant_id, customer_id, delivery_time, distance_meters) VALUES (NEXT VALUE " +
+            "FOR hibernate_sequence, ?, ?, ?, ?, ?)";
+    protected static final String DELIVERY_TIME_INDEX = "idx_delivery_time";
+    protected static final long PROGRESS_INTERVAL_MILLIS = 5000;
+    protected static final int IMPORT_PHASE = 0;
+
+    static final String[] COLUMNS = {"driver", "restaurant", "customer", "deliveryTime",
+            "distanceMeters"};
+    private static final int MAX_LOGGED_BAD_ROWS = 10;
+    private static final Long AMBIGUOUS_ID = -1L;
+    private static final Object[] AMBIGUOUS_ROW = new Object[0];
+
+    @Value("${walt.import.file:}")
+    private String importFile;
+    @Value("${walt.import.batch-size:5000}")
+    private int batchSize;
+
+    @Autowired
+    private JdbcTemplate jdbcTemplate;
+    @Autowired
+    private PlatformTransactionManager transactionManager;
+    @Autowired
+    private DriverRepository driverRepository;
+    @Autowired
+    private RestaurantRepository restaurantRepository;
+    @Autowired
+    private CustomerRepository customerRepository;
+    @Autowired
+    private SchedulingState schedulingState;
+    @Autowired
+    private NoAvailableDriverCache noAvailableDriverCache;
+
+    private volatile boolean running;
+
+    @Override
+    public void start() {
+        running = true;
+        if (importFile != null && !importFile.isEmpty()) {
+            try {
+                importDeliveries(Paths.get(importFile));
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+    }
+
+    @Override
+    public void stop() {
+        running = false;
+    }
+
+    @Override
+    public boolean isRunning() {
+        return running;
+    }
+
+    @Override
+    public int getPhase() {
+        return IMPORT_PHASE;
+    }
+
+    /**
+     * this method imports all the deliveries of a file
+     *
+     * @param file a .csv file with a header line, or a .ndjson / .jsonl file
+     * @return the number of rows imported and skipped
+     * @throws IOException
+     */
+    public DeliveryImportResult importDeliveries(Path file) throws IOException {
+        boolean csv = isCsv(file);
+        List<NamedEntityId> driverIds = driverRepository.findAllNamedIds();
+        Map<String, List<Long>> driverCities = toCityMap(driverIds);
+        Map<NameInCity, Long> drivers = toIdMap(driverIds);
+        Map<NameInCity, Long> restaurants = toIdMap(restaurantRepository.findAllNamedIds());
+        Map<NameInCity, Long> customers = toIdMap(customerRepository.findAllNamedIds());
+        TransactionTemplate transactionTemplate = new TransactionTemplate(transactionManager);
+
+        long start = System.currentTimeMillis();
+        long lastProgress = start;
+        long imported = 0;
+        long skipped = 0;
+        long ambiguous = 0;
+        boolean h2 = isH2();
+        if (h2) {
+            suspendConstraints();
+        }
+        try (BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            int[] columnIndexes = csv ? readHeader(file, reader.readLine()) : null;
+            List<Object[]> batch = new ArrayList<>(batchSize);
+            long lineNumber = csv ? 1 : 0;
+            String line;
+            while ((line = reader.readLine()) != null) {
+                lineNumber++;
+                if (line.trim().isEmpty()) {
+                    continue;
+                }
+                Object[] row = toRow(csv ? parseCsv(line, columnIndexes) : parseJson(line),
+                        driverCities, drivers, restaurants, customers);
+                if (row == AMBIGUOUS_ROW) {
+                    ambiguous++;
+                    row = null;
+                }
+                if (row == null) {
+                    if (skipped++ < MAX_LOGGED_BAD_ROWS) {
+                        log.warn("Skipping line {} of {}: {}", lineNumber, file, line);
+                    }
+                    continue;
+                }
+                batch.add(row);
+                if (batch.size() == batchSize) {
+                    imported += insert(transactionTemplate, batch);
+                    long now = System.currentTimeMillis();
+                    if (now - lastProgress >= PROGRESS_INTERVAL_MILLIS) {
+                        log.info("Imported {} deliveries from {} ({} rows/s)", imported, file,
+                                (imported + skipped) * 1000 / Math.max(1, now - start));
+                        lastProgress = now;
+                    }
+                }
+            }
+            imported += insert(transactionTemplate, batch);
+        } finally {
+            try {
+                if (h2) {
+                    restoreConstraints();
+                }
+            } finally {
+                schedulingState.rebuild();
+                noAvailableDriverCache.clear();
+            }
+        }
+
+        DeliveryImportResult result = new DeliveryImportResult(imported, skipped, ambiguous,
+                System.currentTimeMillis() - start);
+        log.info("Imported {} deliveries from {} in {} ms ({} rows/s), {} rows skipped, {} of " +
+                        "them ambiguous", imported, file, result.getElapsedMillis(),
+                (long) result.getRowsPerSecond(), skipped, ambiguous);
+        return result;
+    }
+
+    private int insert(TransactionTemplate transactionTemplate, List<Object[]> batch) {
+        if (batch.isEmpty()) {
+            return 0;
+        }
+        transactionTemplate.execute(status -> jdbcTemplate.batchUpdate(INSERT_DELIVERY, batch));
+        int inserted = batch.size();
+        batch.clear();
+        return inserted;
+    }
+
+    /**
+     * this method resolves the fields of a row into the parameters of INSERT_DELIVERY. The names
+     * are looked up in each city the driver's name is found in.
+     *
+     * @return the parameters, AMBIGUOUS_ROW if the names match more than one delivery, or null if
+     * the row is malformed, references an unknown name or names in different cities
+     */
+    private static Object[] toRow(String[] fields, Map<String, List<Long>> driverCities,
+                                  Map<NameInCity, Long> drivers,
+                                  Map<NameInCity, Long> restaurants,
+                                  Map<NameInCity, Long> customers) {
+        if (fields == null || fields[3] == null || fields[4] == null) {
+            return null;
+        }
+        List<Long> cities = driverCities.get(fields[0]);
+        if (cities == null) {
+            return null;
+        }
+        Long driverId = null;
+        Long restaurantId = null;
+        Long customerId = null;
+        int matches = 0;
+        for (Long cityId : cities) {
+            Long cityRestaurantId = restaurants.get(new NameInCity(fields[1], cityId));
+            Long cityCustomerId = customers.get(new NameInCity(fields[2], cityId));
+            if (cityRestaurantId != null && cityCustomerId != null) {
+                matches++;
+                driverId = drivers.get(new NameInCity(fields[0], cityId));
+                restaurantId = cityRestaurantId;
+                customerId = cityCustomerId;
+            }
+        }
+        if (matches == 0) {
+            return null;
+        }
+        if (matches > 1 || AMBIGUOUS_ID.equals(driverId) || AMBIGUOUS_ID.equals(restaurantId) ||
+                AMBIGUOUS_ID.equals(customerId)) {
+            return AMBIGUOUS_ROW;
+        }
+        try {
+            Timestamp deliveryTime = fields[3].chars().allMatch(Character::isDigit) ?
+                    new Timestamp(Long.parseLong(fields[3])) :
+                    Timestamp.from(Instant.parse(fields[3]));
+            int distanceMeters = Integer.parseInt(fields[4]);
+            if (distanceMeters < 0) {
+                return null;
+            }
+            return new Object[]{driverId, restaurantId, customerId, deliveryTime,
+                    distanceMeters};
+        } catch (RuntimeException e) {
+            return null;
+        }
+    }
+
+    private static int[] readHeader(Path file, String header) {
+        String[] names = header == null ? new String[0] : splitCsv(header);
+        List<String> columns = new ArrayList<>();
+        for (String name : names) {
+            columns.add(name.trim());
+        }
+        int[] columnIndexes = new int[COLUMNS.length];
+        for (int i = 0; i < COLUMNS.length; i++) {
+            columnIndexes[i] = columns.indexOf(COLUMNS[i]);
+            if (columnIndexes[i] < 0) {
+                throw new RuntimeException(String.format(ERROR_MSG_IMPORT_HEADER, file,
+                        Arrays.toString(COLUMNS)));
+            }
+        }
+        return columnIndexes;
+    }
+
+    private static String[] parseCsv(String line, int[] columnIndexes) {
+        String[] values = splitCsv(line);
+        String[] fields = new String[COLUMNS.length];
+        for (int i = 0; i < COLUMNS.length; i++) {
+            if (columnIndexes[i] >= values.length) {
+                return null;
+            }
+            fields[i] = values[columnIndexes[i]].trim();
+        }
+        return fields;
+    }
+
+    private static String[] parseJson(String line) {
+        try {
+            JsonNode node = objectMapper.readTree(line);
+            String[] fields = new String[COLUMNS.length];
+            for (int i = 0; i < COLUMNS.length; i++) {
+                fields[i] = node.hasNonNull(COLUMNS[i]) ? node.get(COLUMNS[i]).asText() : null;
+            }
+            return fields;
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    /**
+     * this method splits a CSV line on commas. A field may be double quoted, in which case it may
+     * hold commas, and a double quote inside it is written twice.
+     *
+     * @param line
+     * @return
+     */
+    static String[] splitCsv(String line) {
+        List<String> fields = new ArrayList<>();
+        StringBuilder field = new StringBuilder();
+        boolean quoted = false;
+        for (int i = 0; i < line.length(); i++) {
+            char c = line.charAt(i);
+            if (quoted) {
+                if (c != '"') {
+                    field.append(c);
+                } else if (i + 1 < line.length() && line.charAt(i + 1) == '"') {
+                    field.append('"');
+                    i++;
+                } else {
+                    quoted = false;
+                }
+            } else if (c == '"') {
+                quoted = true;
+            } else if (c == ',') {
+                fields.add(field.toString());
+                field.setLength(0);
+            } else {
+                field.append(c);
+            }
+        }
+        fields.add(field.toString());
+        return fields.toArray(new String[0]);
+    }
+
+    /**
+     * this method maps each (name, city) pair to its id, or to AMBIGUOUS_ID if the city has more
+     * than one entity of that name
+     *
+     * @param entities
+     * @return
+     */
+    private static Map<NameInCity, Long> toIdMap(List<NamedEntityId> entities) {
+        Map<NameInCity, Long> ids = new HashMap<>(entities.size() * 2);
+        for (NamedEntityId entity : entities) {
+            ids.merge(new NameInCity(entity.getName(), entity.getCityId()), entity.getId(),
+                    (id, otherId) -> AMBIGUOUS_ID);
+        }
+        return ids;
+    }
+
+    /**
+     * this method maps each name to the cities it is found in
+     *
+     * @param entities
+     * @return
+     */
+    private static Map<String, List<Long>> toCityMap(List<NamedEntityId> entities) {
+        Map<String, List<Long>> cities = new HashMap<>(entities.size() * 2);
+        for (NamedEntityId entity : entities) {
+            List<Long> nameCities = cities.computeIfAbsent(entity.getName(),
+                    name -> new ArrayList<>(1));
+            if (!nameCities.contains(entity.getCityId())) {
+                nameCities.add(entity.getCityId());
+            }
+        }
+        return cities;
+    }
+
+    private static boolean isCsv(Path file) {
+        String name = file.getFileName().toString().toLowerCase(Locale.ROOT);
+        if (name.endsWith(".csv")) {
+            return true;
+        }
+        if (name.endsWith(".ndjson") || name.endsWith(".jsonl")) {
+            return false;
+        }
+        throw new RuntimeException(String.format(ERROR_MSG_IMPORT_FORMAT, file));
+    }
+
+    private boolean isH2() {
+        String product = jdbcTemplate.execute((ConnectionCallback<String>) connection ->
+                connection.getMetaData().getDatabaseProductName());
+        return "H2".equals(product);
+    }
+
+    private void suspendConstraints() {
+        jdbcTemplate.execute("SET REFERENTIAL_INTEGRITY FALSE");
+        jdbcTemplate.execute("DROP INDEX IF EXISTS " + DELIVERY_TIME_INDEX);
+    }
+
+    private void restoreConstraints() {
+        jdbcTemplate.execute("CREATE INDEX IF NOT EXISTS " + DELIVERY_TIME_INDEX +
+                " ON delivery (delivery_time)");
+        jdbcTemplate.execute("SET REFERENTIAL_INTEGRITY TRUE");
+    }
+
+    private static class NameInCity {
+
+        private final String name;
+        private final Long cityId;
+
+        private NameInCity(String name, Long cityId) {
+            this.name = name;
+            this.cityId = cityId;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof NameInCity)) {
+                return false;
+            }
+            NameInCity key = (NameInCity) o;
+            return Objects.equals(name, key.name) && Objects.equals(cityId, key.cityId);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(name, cityId);
+        }
+    }
+}
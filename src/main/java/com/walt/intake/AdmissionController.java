@@ -0,0 +1,210 @@
+package com.walt.intake;
+
+import com.walt.model.City;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * this class limits the number of orders of a single city being processed at the same time, so
+ * a surge in one city cannot hold every request thread and database connection.
+ * <p>
+ * Each city has its own concurrency limit, adjusted by AIMD on order latency: an order slower
+ * than the target latency cuts the limit by a fixed ratio, and fast orders raise it by one per
+ * limit orders, between the configured minimum and maximum. The limit is only raised by orders
+ * completing while the city uses at least half of it, so a city that never fills its limit
+ * does not grow it. On top of that, the orders of all the cities together are capped by a
+ * global limit, which defaults to the size of the connection pool. The maximum limit of a city
+ * defaults to half of the global limit, so a hot city cannot take every global permit and shed
+ * the others, and its initial limit to half of its maximum. An order above either limit is not
+ * queued, tryAcquire fails at once so the caller can shed it. The limit, the orders in flight
+ * and the admitted and shed orders of every city are published as metrics tagged by city, the
+ * orders shed at the global limit apart from the ones shed at the city's own limit. Admission
+ * control is enabled with "walt.admission.enabled".
+ */
+@Component
+public class AdmissionController {
+
+    protected static final double BACKOFF_RATIO = 0.9;
+
+    private static final Permit UNLIMITED = new Permit(null);
+
+    private final boolean enabled;
+    private final int globalLimit;
+    private final int initialLimit;
+    private final int minLimit;
+    private final int maxLimit;
+    private final long targetLatencyNanos;
+    private final MeterRegistry meterRegistry;
+    private final Map<Long, CityLimiter> cities = new ConcurrentHashMap<>();
+    private final AtomicInteger globalInFlight = new AtomicInteger();
+
+    /**
+     * @param enabled
+     * @param globalLimit     the orders in flight over all the cities
+     * @param initialLimit    the starting limit of a city, or 0 for half of its maximum
+     * @param minLimit
+     * @param maxLimit        the highest limit of a city, or 0 for half of the global limit
+     * @param targetLatencyMs
+     * @param meterRegistry
+     */
+    @Autowired
+    public AdmissionController(@Value("${walt.admission.enabled:false}") boolean enabled,
+                               @Value("${walt.admission.global-limit:" +
+                                       "${spring.datasource.hikari.maximum-pool-size:10}}")
+                                       int globalLimit,
+                               @Value("${walt.admission.initial-limit:0}") int initialLimit,
+                               @Value("${walt.admission.min-limit:1}") int minLimit,
+                               @Value("${walt.admission.max-limit:0}") int maxLimit,
+                               @Value("${walt.admission.target-latency-ms:100}")
+                                       long targetLatencyMs,
+                               MeterRegistry meterRegistry) {
+        this.enabled = enabled;
+        this.globalLimit = Math.max(1, globalLimit);
+        this.minLimit = Math.min(this.globalLimit, Math.max(1, minLimit));
+        this.maxLimit = Math.max(this.minLimit, Math.min(this.globalLimit,
+                maxLimit <= 0 ? this.globalLimit / 2 : maxLimit));
+        this.initialLimit = Math.min(this.maxLimit, Math.max(this.minLimit,
+                initialLimit <= 0 ? this.maxLimit / 2 : initialLimit));
+        this.targetLatencyNanos = TimeUnit.MILLISECONDS.toNanos(targetLatencyMs);
+        this.meterRegistry = meterRegistry;
+        Gauge.builder("walt.admission.global.in.flight", globalInFlight, AtomicInteger::get)
+                .description("Orders of all the cities being processed")
+                .register(meterRegistry);
+    }
+
+    /**
+     * this method admits an order of the given city if the city is under its limit and all the
+     * cities together are under the global limit
+     *
+     * @param city
+     * @return a permit to release once the order is done, or null if the order must be shed
+     */
+    public Permit tryAcquire(City city) {
+        if (!enabled) {
+            return UNLIMITED;
+        }
+        CityLimiter limiter = cities.computeIfAbsent(city.getId(),
+                id -> new CityLimiter(city, initialLimit));
+        while (true) {
+            int inFlight = limiter.inFlight.get();
+            if (inFlight >= (int) limiter.limit) {
+                limiter.shed.increment();
+                return null;
+            }
+            if (limiter.inFlight.compareAndSet(inFlight, inFlight + 1)) {
+                break;
+            }
+        }
+        if (globalInFlight.incrementAndGet() > globalLimit) {
+            globalInFlight.decrementAndGet();
+            limiter.inFlight.decrementAndGet();
+            limiter.globalShed.increment();
+            return null;
+        }
+        limiter.admitted.increment();
+        return new Permit(limiter);
+    }
+
+    /**
+     * @param city
+     * @return the current concurrency limit of the city
+     */
+    public int getLimit(City city) {
+        CityLimiter limiter = cities.get(city.getId());
+        return limiter == null ? initialLimit : (int) limiter.limit;
+    }
+
+    /**
+     * @param city
+     * @return the orders of the city shed at the city's own limit
+     */
+    public long getShed(City city) {
+        CityLimiter limiter = cities.get(city.getId());
+        return limiter == null ? 0 : (long) limiter.shed.count();
+    }
+
+    /**
+     * @param city
+     * @return the orders of the city shed at the global limit
+     */
+    public long getGlobalShed(City city) {
+        CityLimiter limiter = cities.get(city.getId());
+        return limiter == null ? 0 : (long) limiter.globalShed.count();
+    }
+
+    private void release(CityLimiter limiter, long latencyNanos) {
+        int inFlight = limiter.inFlight.getAndDecrement();
+        globalInFlight.decrementAndGet();
+        synchronized (limiter) {
+            if (latencyNanos > targetLatencyNanos) {
+                limiter.limit = Math.max(minLimit, limiter.limit * BACKOFF_RATIO);
+            } else if (inFlight * 2 >= limiter.limit) {
+                limiter.limit = Math.min(maxLimit, limiter.limit + 1 / limiter.limit);
+            }
+        }
+    }
+
+    /**
+     * an admitted order, released exactly once when the order is done
+     */
+    public static class Permit {
+
+        private final CityLimiter limiter;
+        private final long start = System.nanoTime();
+
+        private Permit(CityLimiter limiter) {
+            this.limiter = limiter;
+        }
+
+        public void release() {
+            if (limiter != null) {
+                limiter.controller.release(limiter, System.nanoTime() - start);
+            }
+        }
+    }
+
+    private class CityLimiter {
+
+        private final AdmissionController controller = AdmissionController.this;
+        private final AtomicInteger inFlight = new AtomicInteger();
+        private volatile double limit;
+        private final Counter admitted;
+        private final Counter shed;
+        private final Counter globalShed;
+
+        private CityLimiter(City city, int initialLimit) {
+            this.limit = initialLimit;
+            String cityTag = city.getName() == null ? String.valueOf(city.getId()) :
+                    city.getName();
+            Gauge.builder("walt.admission.limit", this, limiter -> limiter.limit)
+                    .description("Concurrent orders admitted in the city")
+                    .tag("city", cityTag)
+                    .register(meterRegistry);
+            Gauge.builder("walt.admission.in.flight", inFlight, AtomicInteger::get)
+                    .description("Orders of the city being processed")
+                    .tag("city", cityTag)
+                    .register(meterRegistry);
+            this.admitted = Counter.builder("walt.admission.admitted")
+                    .description("Orders admitted by admission control")
+                    .tag("city", cityTag)
+                    .register(meterRegistry);
+            this.shed = Counter.builder("walt.admission.shed")
+                    .description("Orders shed because the city was at its limit")
+                    .tag("city", cityTag)
+                    .register(meterRegistry);
+            this.globalShed = Counter.builder("walt.admission.global.shed")
+                    .description("Orders shed because all the cities were at the global limit")
+                    .tag("city", cityTag)
+                    .register(meterRegistry);
+        }
+    }
+}
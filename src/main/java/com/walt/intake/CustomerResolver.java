@@ -0,0 +1,268 @@
+package com.walt.intake;
+
+import com.walt.dao.CustomerRepository;
+import com.walt.model.City;
+import com.walt.model.Customer;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.dao.DataIntegrityViolationException;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionDefinition;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * this class finds the customer placing an order by name, city and address, creating it if this
+ * is the customer's first order.
+ * <p>
+ * Resolved customers are kept in a bounded LRU cache, so a returning customer costs no database
+ * round trip. Concurrent first orders of the same customer wait for a single creation. New
+ * customers are created in groups: whoever takes the creation lock inserts every customer
+ * queued so far in one batch, so a burst of new customers costs a few transactions instead of
+ * one each. The unique constraint on the customer columns of named_entity covers nodes creating
+ * the same customer at the same time; the loser reads the winner's row.
+ */
+@Component
+public class CustomerResolver {
+
+    protected static final int MAX_CREATE_BATCH = 500;
+
+    private final Map<CustomerKey, Customer> cache;
+    private final Map<CustomerKey, CompletableFuture<Customer>> inFlight =
+            new ConcurrentHashMap<>();
+    private final Queue<PendingCustomer> pending = new ConcurrentLinkedQueue<>();
+    private final ReentrantLock createLock = new ReentrantLock();
+    private final TransactionTemplate newTransaction;
+    private final Counter hits;
+    private final Counter created;
+
+    @Autowired
+    private CustomerRepository customerRepository;
+
+    @Autowired
+    public CustomerResolver(@Value("${walt.customers.cache-size:10000}") int cacheSize,
+                            PlatformTransactionManager transactionManager,
+                            MeterRegistry meterRegistry) {
+        this.cache = new LinkedHashMap<CustomerKey, Customer>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<CustomerKey, Customer> eldest) {
+                return size() > cacheSize;
+            }
+        };
+        this.newTransaction = new TransactionTemplate(transactionManager);
+        this.newTransaction.setPropagationBehavior(TransactionDefinition.PROPAGATION_REQUIRES_NEW);
+        this.hits = Counter.builder("walt.customers.cache.hits")
+                .description("Customers resolved from the customer cache")
+                .register(meterRegistry);
+        this.created = Counter.builder("walt.customers.created")
+                .description("Customers created on their first order")
+                .register(meterRegistry);
+    }
+
+    /**
+     * this method returns the customer with the given name, city and address, creating it if it
+     * does not exist yet
+     *
+     * @param name
+     * @param city
+     * @param address
+     * @return
+     */
+    public Customer resolve(String name, City city, String address) {
+        CustomerKey key = new CustomerKey(name, city.getId(), address);
+        Customer customer = getCached(key);
+        if (customer != null) {
+            hits.increment();
+            return customer;
+        }
+        CompletableFuture<Customer> future = new CompletableFuture<>();
+        CompletableFuture<Customer> existing = inFlight.putIfAbsent(key, future);
+        if (existing != null) {
+            return await(existing);
+        }
+        try {
+            customer = customerRepository.findFirstByNameAndCityAndAddress(name, city, address);
+            if (customer != null) {
+                complete(key, future, customer);
+            } else {
+                pending.add(new PendingCustomer(key, new Customer(name, city, address), future));
+                createPending(future);
+            }
+        } catch (RuntimeException e) {
+            inFlight.remove(key, future);
+            future.completeExceptionally(e);
+        }
+        return await(future);
+    }
+
+    public long getHits() {
+        return (long) hits.count();
+    }
+
+    public long getCreated() {
+        return (long) created.count();
+    }
+
+    /**
+     * this method blocks until the given creation is done. The thread that takes the creation
+     * lock inserts all the queued customers, its own and those queued while the previous batch
+     * was being inserted.
+     *
+     * @param future
+     */
+    private void createPending(CompletableFuture<Customer> future) {
+        while (!future.isDone()) {
+            createLock.lock();
+            try {
+                if (!future.isDone()) {
+                    createBatch();
+                }
+            } finally {
+                createLock.unlock();
+            }
+        }
+    }
+
+    private void createBatch() {
+        List<PendingCustomer> batch = new ArrayList<>();
+        PendingCustomer next;
+        while (batch.size() < MAX_CREATE_BATCH && (next = pending.poll()) != null) {
+            batch.add(next);
+        }
+        if (batch.isEmpty()) {
+            return;
+        }
+        List<Customer> customers = new ArrayList<>(batch.size());
+        for (PendingCustomer pendingCustomer : batch) {
+            customers.add(pendingCustomer.customer);
+        }
+        try {
+            newTransaction.execute(status -> customerRepository.saveAll(customers));
+            created.increment(batch.size());
+            for (PendingCustomer pendingCustomer : batch) {
+                complete(pendingCustomer.key, pendingCustomer.future, pendingCustomer.customer);
+            }
+        } catch (DataIntegrityViolationException e) {
+            // another node created one of them meanwhile, fall back to one customer at a time
+            for (PendingCustomer pendingCustomer : batch) {
+                createOne(pendingCustomer);
+            }
+        } catch (RuntimeException e) {
+            for (PendingCustomer pendingCustomer : batch) {
+                inFlight.remove(pendingCustomer.key, pendingCustomer.future);
+                pendingCustomer.future.completeExceptionally(e);
+            }
+        }
+    }
+
+    private void createOne(PendingCustomer pendingCustomer) {
+        Customer customer = pendingCustomer.customer;
+        try {
+            Customer saved;
+            try {
+                saved = newTransaction.execute(status -> customerRepository.save(
+                        new Customer(customer.getName(), customer.getCity(),
+                                customer.getAddress())));
+                created.increment();
+            } catch (DataIntegrityViolationException e) {
+                saved = customerRepository.findFirstByNameAndCityAndAddress(customer.getName(),
+                        customer.getCity(), customer.getAddress());
+                if (saved == null) {
+                    throw e;
+                }
+            }
+            complete(pendingCustomer.key, pendingCustomer.future, saved);
+        } catch (RuntimeException e) {
+            inFlight.remove(pendingCustomer.key, pendingCustomer.future);
+            pendingCustomer.future.completeExceptionally(e);
+        }
+    }
+
+    private void complete(CustomerKey key, CompletableFuture<Customer> future,
+                          Customer customer) {
+        synchronized (cache) {
+            cache.put(key, customer);
+        }
+        inFlight.remove(key, future);
+        future.complete(customer);
+    }
+
+    private Customer getCached(CustomerKey key) {
+        synchronized (cache) {
+            return cache.get(key);
+        }
+    }
+
+    private static Customer await(CompletableFuture<Customer> future) {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new RuntimeException(e.getCause());
+        }
+    }
+
+    private static class PendingCustomer {
+
+        private final CustomerKey key;
+        private final Customer customer;
+        private final CompletableFuture<Customer> future;
+
+        private PendingCustomer(CustomerKey key, Customer customer,
+                                CompletableFuture<Customer> future) {
+            this.key = key;
+            this.customer = customer;
+            this.future = future;
+        }
+    }
+
+    private static class CustomerKey {
+
+        private final String name;
+        private final Long cityId;
+        private final String address;
+
+        private CustomerKey(String name, Long cityId, String address) {
+            this.name = name;
+            this.cityId = cityId;
+            this.address = address;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof CustomerKey)) {
+                return false;
+            }
+            CustomerKey key = (CustomerKey) o;
+            return Objects.equals(name, key.name) && Objects.equals(cityId, key.cityId) &&
+                    Objects.equals(address, key.address);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(name, cityId, address);
+        }
+    }
+}
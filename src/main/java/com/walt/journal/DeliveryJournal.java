@@ -0,0 +1,209 @@
+package com.walt.journal;
+
+import java.io.IOException;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * an append-only, memory mapped journal of accepted deliveries. The layout is a fixed header
+ * (magic, version and the sequence of the last entry persisted to the database) followed by
+ * fixed size records, each one ending with a crc32 so a torn write at the tail is detected.
+ * <p>
+ * Writers append under a lock and then call sync. Syncs are batched: the first waiting thread
+ * forces every record written so far, and the threads queued behind it find their record
+ * already durable and return without forcing again.
+ */
+public class DeliveryJournal implements AutoCloseable {
+
+    static final int MAGIC = 0x574A524E;
+    static final int VERSION = 2;
+    static final int KM_DISTANCE_VERSION = 1;
+    static final int HEADER_BYTES = 64;
+    static final int RECORD_BYTES = 6 * 8 + 4;
+
+    private static final int PERSISTED_SEQUENCE_OFFSET = 8;
+    private static final int CRC_OFFSET = RECORD_BYTES - 4;
+
+    private final Path file;
+    private final FileChannel channel;
+    private final MappedByteBuffer buffer;
+    private final int capacity;
+    private final Object syncLock = new Object();
+
+    private int writePosition;
+    private long lastSequence;
+    private long persistedSequence;
+    private volatile long durableSequence;
+
+    /**
+     * opens the journal file, creating it if needed, and finds the last valid record
+     *
+     * @param file
+     * @param capacity the size of the journal file in bytes
+     * @throws IOException
+     */
+    public DeliveryJournal(Path file, int capacity) throws IOException {
+        if (capacity < HEADER_BYTES + RECORD_BYTES) {
+            throw new IllegalArgumentException("Journal capacity is too small: " + capacity);
+        }
+        this.file = file;
+        this.capacity = capacity;
+        this.channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+        this.buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+        if (buffer.getInt(0) != MAGIC) {
+            buffer.putInt(0, MAGIC);
+            buffer.putInt(4, VERSION);
+            buffer.putLong(PERSISTED_SEQUENCE_OFFSET, 0);
+        }
+        persistedSequence = buffer.getLong(PERSISTED_SEQUENCE_OFFSET);
+        scan();
+        int version = buffer.getInt(4);
+        if (version != VERSION) {
+            // a drained journal of km distances holds nothing to replay, so it is reused as it is
+            if (version != KM_DISTANCE_VERSION || lastSequence > persistedSequence) {
+                throw new IOException("Unsupported journal version " + version + " in " + file);
+            }
+            buffer.putInt(4, VERSION);
+        }
+    }
+
+    public Path getFile() {
+        return file;
+    }
+
+    public synchronized long getLastSequence() {
+        return lastSequence;
+    }
+
+    public synchronized long getPersistedSequence() {
+        return persistedSequence;
+    }
+
+    /**
+     * this method appends a delivery to the journal. The record is not durable until sync is
+     * called with the returned sequence.
+     *
+     * @return the sequence of the new record, or -1 if the journal is full of records that are
+     * not persisted yet
+     */
+    public synchronized long append(long driverId, long restaurantId, long customerId,
+                                    long deliveryTime, int distanceMeters) {
+        if (writePosition + RECORD_BYTES > capacity) {
+            if (persistedSequence < lastSequence) {
+                return -1;
+            }
+            writePosition = HEADER_BYTES;
+        }
+        long sequence = lastSequence + 1;
+        int position = writePosition;
+        buffer.putLong(position, sequence);
+        buffer.putLong(position + 8, driverId);
+        buffer.putLong(position + 16, restaurantId);
+        buffer.putLong(position + 24, customerId);
+        buffer.putLong(position + 32, deliveryTime);
+        buffer.putLong(position + 40, distanceMeters);
+        buffer.putInt(position + CRC_OFFSET, (int) checksum(position));
+        writePosition += RECORD_BYTES;
+        lastSequence = sequence;
+        return sequence;
+    }
+
+    /**
+     * this method blocks until the record with the given sequence is forced to disk
+     *
+     * @param sequence
+     */
+    public void sync(long sequence) {
+        if (durableSequence >= sequence) {
+            return;
+        }
+        synchronized (syncLock) {
+            if (durableSequence >= sequence) {
+                return;
+            }
+            long target = getLastSequence();
+            buffer.force();
+            durableSequence = target;
+        }
+    }
+
+    /**
+     * this method records that every entry up to the given sequence is stored in the database,
+     * so it will not be replayed again
+     *
+     * @param sequence
+     */
+    public synchronized void markPersisted(long sequence) {
+        if (sequence > persistedSequence) {
+            persistedSequence = sequence;
+            buffer.putLong(PERSISTED_SEQUENCE_OFFSET, sequence);
+        }
+    }
+
+    /**
+     * this method returns all the valid entries which are not persisted yet, in journal order
+     *
+     * @return
+     */
+    public synchronized List<JournalEntry> readUnpersisted() {
+        List<JournalEntry> entries = new ArrayList<>();
+        for (int position = HEADER_BYTES; position < writePosition; position += RECORD_BYTES) {
+            long sequence = buffer.getLong(position);
+            if (sequence > persistedSequence) {
+                entries.add(new JournalEntry(sequence, buffer.getLong(position + 8),
+                        buffer.getLong(position + 16), buffer.getLong(position + 24),
+                        buffer.getLong(position + 32), (int) buffer.getLong(position + 40)));
+            }
+        }
+        return entries;
+    }
+
+    @Override
+    public void close() throws IOException {
+        synchronized (syncLock) {
+            buffer.force();
+        }
+        channel.close();
+    }
+
+    /**
+     * this method finds the end of the journal: the first record that is torn, empty or out of
+     * sequence. Records left behind it from before the journal wrapped are ignored.
+     */
+    private void scan() {
+        int position = HEADER_BYTES;
+        long previous = 0;
+        while (position + RECORD_BYTES <= capacity) {
+            long sequence = buffer.getLong(position);
+            if (sequence <= 0 || (previous > 0 && sequence != previous + 1) ||
+                    buffer.getInt(position + CRC_OFFSET) != (int) checksum(position)) {
+                break;
+            }
+            previous = sequence;
+            position += RECORD_BYTES;
+        }
+        writePosition = position;
+        lastSequence = Math.max(previous, persistedSequence);
+        if (lastSequence == persistedSequence) {
+            writePosition = HEADER_BYTES;
+        }
+        durableSequence = lastSequence;
+    }
+
+    private long checksum(int position) {
+        ByteBuffer record = buffer.duplicate();
+        ((Buffer) record).position(position);
+        ((Buffer) record).limit(position + CRC_OFFSET);
+        CRC32 crc = new CRC32();
+        crc.update(record);
+        return crc.getValue();
+    }
+}
@@ -0,0 +1,335 @@
+package com.walt.journal;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.walt.dao.CustomerRepository;
+import com.walt.dao.DeliveryRepository;
+import com.walt.dao.DriverRepository;
+import com.walt.dao.RestaurantRepository;
+import com.walt.model.Customer;
+import com.walt.model.Delivery;
+import com.walt.model.Driver;
+import com.walt.model.Restaurant;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionDefinition;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+/**
+ * this class implements the write-behind mode of order intake ("walt.journal.enabled"). An
+ * accepted delivery is appended to the delivery journal and acknowledged once the journal is
+ * synced, and it is saved to the database later on, in batches, by a scheduled flush. Each
+ * batch is saved in a transaction of its own, and marked as persisted in the journal only once
+ * that transaction committed.
+ * <p>
+ * A batch which cannot be saved is saved again delivery by delivery, so one bad delivery does
+ * not hold back the ones behind it. A delivery which still cannot be saved is logged, appended
+ * to the dead letter file in the NDJSON format of the delivery importer, and handed to the dead
+ * letter listener so it is taken out of the scheduling state.
+ * <p>
+ * On startup every journal entry which did not reach the database is replayed, so a killed
+ * process does not lose acknowledged deliveries.
+ */
+@Component
+public class DeliveryWriteBehind {
+
+    private static final Logger log = LoggerFactory.getLogger(DeliveryWriteBehind.class);
+
+    protected static final String ERROR_MSG_JOURNAL_FULL =
+            "ERROR : The delivery journal is full";
+
+    @Value("${walt.journal.enabled:false}")
+    private boolean enabled;
+    @Value("${walt.journal.file:walt-deliveries.journal}")
+    private String journalFile;
+    @Value("${walt.journal.size-mb:64}")
+    private int journalSizeMb;
+    @Value("${walt.journal.batch-size:500}")
+    private int batchSize;
+    @Value("${walt.journal.dead-letter-file:walt-deliveries.dead.ndjson}")
+    private String deadLetterFile;
+
+    @Autowired
+    private DeliveryRepository deliveryRepository;
+    @Autowired
+    private DriverRepository driverRepository;
+    @Autowired
+    private RestaurantRepository restaurantRepository;
+    @Autowired
+    private CustomerRepository customerRepository;
+    @Autowired
+    private PlatformTransactionManager transactionManager;
+
+    private TransactionTemplate batchTransaction;
+
+    private final Object appendLock = new Object();
+    private final Queue<PendingDelivery> pending = new ConcurrentLinkedQueue<>();
+    private volatile DeliveryJournal journal;
+    private volatile long lastPersistedId;
+    private final ObjectMapper objectMapper = new ObjectMapper();
+    private final AtomicLong deadLetters = new AtomicLong();
+    private volatile Consumer<Delivery> deadLetterListener = delivery -> {
+    };
+
+    @PostConstruct
+    public void open() throws IOException {
+        batchTransaction = new TransactionTemplate(transactionManager);
+        batchTransaction.setPropagationBehavior(TransactionDefinition.PROPAGATION_REQUIRES_NEW);
+        if (!enabled) {
+            return;
+        }
+        journal = new DeliveryJournal(Paths.get(journalFile), journalSizeMb * 1024 * 1024);
+        int replayed = replay();
+        log.info("Delivery journal {} opened, {} deliveries replayed to the database",
+                journalFile, replayed);
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * this method sets what is done with a delivery which could not be saved, once it was
+     * written to the dead letter file
+     *
+     * @param deadLetterListener
+     */
+    public void setDeadLetterListener(Consumer<Delivery> deadLetterListener) {
+        this.deadLetterListener = deadLetterListener;
+    }
+
+    public long getDeadLetters() {
+        return deadLetters.get();
+    }
+
+    /**
+     * this method returns the highest delivery id this class has saved to the database
+     *
+     * @return
+     */
+    public long getLastPersistedId() {
+        return lastPersistedId;
+    }
+
+    /**
+     * this method appends an accepted delivery to the journal and returns once it is durable.
+     * The delivery is saved to the database by a later flush.
+     *
+     * @param delivery
+     */
+    public void submit(Delivery delivery) {
+        long sequence;
+        synchronized (appendLock) {
+            sequence = append(delivery);
+            if (sequence < 0) {
+                drain();
+                sequence = append(delivery);
+            }
+            if (sequence < 0) {
+                throw new RuntimeException(String.format(ERROR_MSG_JOURNAL_FULL));
+            }
+            pending.add(new PendingDelivery(sequence, delivery));
+        }
+        journal.sync(sequence);
+    }
+
+    @Scheduled(fixedDelayString = "${walt.journal.flush-interval-ms:200}")
+    public void flush() {
+        if (enabled) {
+            drain();
+        }
+    }
+
+    /**
+     * this method saves all the pending deliveries to the database, in batches, and marks them
+     * as persisted in the journal. The deliveries of a batch which fails are saved one by one,
+     * and the ones which still fail are dead lettered.
+     *
+     * @return the number of deliveries saved
+     */
+    public synchronized int drain() {
+        if (!enabled) {
+            return 0;
+        }
+        int count = 0;
+        List<PendingDelivery> batch = new ArrayList<>(batchSize);
+        List<Delivery> deliveries = new ArrayList<>(batchSize);
+        while (true) {
+            batch.clear();
+            deliveries.clear();
+            Iterator<PendingDelivery> iterator = pending.iterator();
+            while (iterator.hasNext() && batch.size() < batchSize) {
+                PendingDelivery next = iterator.next();
+                batch.add(next);
+                deliveries.add(next.delivery);
+            }
+            if (batch.isEmpty()) {
+                return count;
+            }
+            int saved;
+            try {
+                batchTransaction.execute(status -> deliveryRepository.saveAll(deliveries));
+                saved = deliveries.size();
+            } catch (RuntimeException e) {
+                log.warn("Could not save a batch of {} journaled deliveries, saving them one " +
+                        "by one", deliveries.size(), e);
+                saved = saveOneByOne(deliveries);
+            }
+            for (int i = 0; i < batch.size(); i++) {
+                pending.poll();
+            }
+            for (Delivery delivery : deliveries) {
+                if (delivery.getId() != null) {
+                    lastPersistedId = Math.max(lastPersistedId, delivery.getId());
+                }
+            }
+            journal.markPersisted(batch.get(batch.size() - 1).sequence);
+            count += saved;
+        }
+    }
+
+    /**
+     * this method saves the deliveries of a failed batch each in its own transaction, and dead
+     * letters the ones which fail. The ids the failed batch assigned are dropped first, so
+     * every delivery is inserted as new.
+     *
+     * @param deliveries
+     * @return the number of deliveries saved
+     */
+    private int saveOneByOne(List<Delivery> deliveries) {
+        int saved = 0;
+        for (Delivery delivery : deliveries) {
+            delivery.setId(null);
+            try {
+                batchTransaction.execute(status -> deliveryRepository.save(delivery));
+                saved++;
+            } catch (RuntimeException e) {
+                delivery.setId(null);
+                deadLetter(delivery, e);
+            }
+        }
+        return saved;
+    }
+
+    private void deadLetter(Delivery delivery, RuntimeException cause) {
+        deadLetters.incrementAndGet();
+        String entry = toDeadLetterEntry(delivery);
+        log.error("Could not save journaled delivery {}, writing it to {}", entry,
+                deadLetterFile, cause);
+        try {
+            Files.write(Paths.get(deadLetterFile),
+                    (entry + System.lineSeparator()).getBytes(StandardCharsets.UTF_8),
+                    StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+        } catch (IOException e) {
+            log.error("Could not write to dead letter file {}", deadLetterFile, e);
+        }
+        deadLetterListener.accept(delivery);
+    }
+
+    private String toDeadLetterEntry(Delivery delivery) {
+        ObjectNode node = objectMapper.createObjectNode();
+        node.put("driver", delivery.getDriver().getName());
+        node.put("restaurant", delivery.getRestaurant().getName());
+        node.put("customer", delivery.getCustomer().getName());
+        node.put("deliveryTime", delivery.getDeliveryTime().toInstant().toString());
+        node.put("distanceMeters", delivery.getDistanceMeters());
+        return node.toString();
+    }
+
+    @PreDestroy
+    public void close() throws IOException {
+        if (!enabled) {
+            return;
+        }
+        drain();
+        journal.close();
+    }
+
+    /**
+     * this method drops the pending deliveries and closes the journal without saving anything,
+     * the way a killed process would. It is used by tests to exercise the replay on open.
+     */
+    synchronized void abandon() throws IOException {
+        pending.clear();
+        journal.close();
+        journal = null;
+    }
+
+    /**
+     * this method saves every journal entry that is not persisted yet. An entry whose driver
+     * already has a delivery at the same time was saved before the journal recorded it, and
+     * is skipped, so replaying is idempotent.
+     *
+     * @return the number of deliveries saved
+     */
+    private synchronized int replay() {
+        int replayed = 0;
+        for (JournalEntry entry : journal.readUnpersisted()) {
+            Date deliveryTime = new Date(entry.getDeliveryTime());
+            if (!deliveryRepository.existsByDriverIdAndDeliveryTime(entry.getDriverId(),
+                    deliveryTime)) {
+                Delivery delivery = toDelivery(entry, deliveryTime);
+                if (delivery != null) {
+                    deliveryRepository.save(delivery);
+                    lastPersistedId = Math.max(lastPersistedId, delivery.getId());
+                    replayed++;
+                }
+            }
+            journal.markPersisted(entry.getSequence());
+        }
+        return replayed;
+    }
+
+    private Delivery toDelivery(JournalEntry entry, Date deliveryTime) {
+        Driver driver = driverRepository.findById(entry.getDriverId()).orElse(null);
+        Restaurant restaurant = restaurantRepository.findById(entry.getRestaurantId())
+                .orElse(null);
+        Customer customer = customerRepository.findById(entry.getCustomerId()).orElse(null);
+        if (driver == null || restaurant == null || customer == null) {
+            log.warn("Skipping journal entry {}, it references a missing driver, restaurant or " +
+                    "customer", entry.getSequence());
+            return null;
+        }
+        Delivery delivery = new Delivery(driver, restaurant, customer, deliveryTime);
+        delivery.setDistanceMeters(entry.getDistanceMeters());
+        return delivery;
+    }
+
+    private long append(Delivery delivery) {
+        return journal.append(delivery.getDriver().getId(), delivery.getRestaurant().getId(),
+                delivery.getCustomer().getId(), delivery.getDeliveryTime().getTime(),
+                delivery.getDistanceMeters());
+    }
+
+    private static class PendingDelivery {
+
+        private final long sequence;
+        private final Delivery delivery;
+
+        private PendingDelivery(long sequence, Delivery delivery) {
+            this.sequence = sequence;
+            this.delivery = delivery;
+        }
+    }
+}
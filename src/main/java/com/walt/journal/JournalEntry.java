@@ -0,0 +1,49 @@
+package com.walt.journal;
+
+/**
+ * a single accepted delivery as it is written to the delivery journal. Entities are referenced
+ * by id so an entry can be persisted again after a restart.
+ */
+public class JournalEntry {
+
+    private final long sequence;
+    private final long driverId;
+    private final long restaurantId;
+    private final long customerId;
+    private final long deliveryTime;
+    private final int distanceMeters;
+
+    public JournalEntry(long sequence, long driverId, long restaurantId, long customerId,
+                        long deliveryTime, int distanceMeters) {
+        this.sequence = sequence;
+        this.driverId = driverId;
+        this.restaurantId = restaurantId;
+        this.customerId = customerId;
+        this.deliveryTime = deliveryTime;
+        this.distanceMeters = distanceMeters;
+    }
+
+    public long getSequence() {
+        return sequence;
+    }
+
+    public long getDriverId() {
+        return driverId;
+    }
+
+    public long getRestaurantId() {
+        return restaurantId;
+    }
+
+    public long getCustomerId() {
+        return customerId;
+    }
+
+    public long getDeliveryTime() {
+        return deliveryTime;
+    }
+
+    public int getDistanceMeters() {
+        return distanceMeters;
+    }
+}
@@ -0,0 +1,51 @@
+package com.walt.model;
+
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * the number of free drivers in every city for each hour of a forecast horizon. Hour 0 starts at
+ * the full hour of the requested start time.
+ */
+public class CapacityForecast {
+
+    private final Date start;
+    private final int hours;
+    private final List<City> cities;
+    private final Map<Long, int[]> freeDriversByCity;
+
+    public CapacityForecast(Date start, int hours, List<City> cities,
+                            Map<Long, int[]> freeDriversByCity) {
+        this.start = start;
+        this.hours = hours;
+        this.cities = cities;
+        this.freeDriversByCity = freeDriversByCity;
+    }
+
+    public Date getStart() {
+        return start;
+    }
+
+    public int getHours() {
+        return hours;
+    }
+
+    public List<City> getCities() {
+        return cities;
+    }
+
+    /**
+     * @param city
+     * @return the number of free drivers in the given city for every hour of the horizon
+     */
+    public int[] getFreeDrivers(City city) {
+        int[] freeDrivers = freeDriversByCity.get(city.getId());
+        return freeDrivers == null ? new int[hours] : freeDrivers.clone();
+    }
+
+    public int getFreeDrivers(City city, int hour) {
+        int[] freeDrivers = freeDriversByCity.get(city.getId());
+        return freeDrivers == null ? 0 : freeDrivers[hour];
+    }
+}
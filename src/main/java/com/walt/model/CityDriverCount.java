@@ -0,0 +1,6 @@
+package com.walt.model;
+
+public interface CityDriverCount {
+    Long getCityId();
+    Long getDrivers();
+}
@@ -5,8 +5,12 @@ import java.util.Date;
 import java.util.Random;
 
 @Entity
+@Table(indexes = @Index(name = "idx_delivery_time", columnList = "delivery_time"))
 public class Delivery {
 
+    public static final int METERS_PER_KM = 1000;
+    public static final int MAX_DISTANCE_METERS = 20 * METERS_PER_KM;
+
     @Id
     @GeneratedValue(strategy= GenerationType.AUTO)
     private Long id;
@@ -20,8 +24,11 @@ public class Delivery {
     @ManyToOne
     Customer customer;
 
+    @Column(name = "delivery_time")
     Date deliveryTime;
-    double distance;
+
+    @Column(name = "distance_meters")
+    int distanceMeters;
 
     public Delivery() {
     }
@@ -31,13 +38,17 @@ public class Delivery {
         this.restaurant = restaurant;
         this.customer = customer;
         this.deliveryTime = deliveryTime;
-        this.distance = 0.0 + new Random().nextDouble() * (20.0 - 0.0);
+        this.distanceMeters = new Random().nextInt(MAX_DISTANCE_METERS + 1);
     }
 
     public Long getId() {
         return id;
     }
 
+    public void setId(Long id) {
+        this.id = id;
+    }
+
     public Driver getDriver() {
         return driver;
     }
@@ -70,11 +81,27 @@ public class Delivery {
         this.deliveryTime = deliveryTime;
     }
 
+    /**
+     * @return the distance in km
+     */
     public double getDistance() {
-        return distance;
+        return (double) distanceMeters / METERS_PER_KM;
     }
 
+    /**
+     * this method sets the distance in km, rounded to the nearest meter
+     *
+     * @param distance
+     */
     public void setDistance(double distance) {
-        this.distance = distance;
+        this.distanceMeters = (int) Math.round(distance * METERS_PER_KM);
+    }
+
+    public int getDistanceMeters() {
+        return distanceMeters;
+    }
+
+    public void setDistanceMeters(int distanceMeters) {
+        this.distanceMeters = distanceMeters;
     }
 }
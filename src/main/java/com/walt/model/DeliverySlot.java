@@ -0,0 +1,11 @@
+package com.walt.model;
+
+import java.util.Date;
+
+public interface DeliverySlot {
+    Long getId();
+    Long getDriverId();
+    Long getCityId();
+    Date getDeliveryTime();
+    Integer getDistanceMeters();
+}
@@ -0,0 +1,45 @@
+package com.walt.model;
+
+import com.walt.analytics.DistanceSketch;
+
+/**
+ * the distribution of the delivery distances of a driver, of a city, or of all the cities when
+ * both are null. Percentiles are read from a distance sketch, so they are accurate to half a
+ * sketch bucket.
+ */
+public class DistanceDistribution {
+
+    private final Driver driver;
+    private final City city;
+    private final DistanceSketch sketch;
+
+    public DistanceDistribution(Driver driver, City city, DistanceSketch sketch) {
+        this.driver = driver;
+        this.city = city;
+        this.sketch = sketch;
+    }
+
+    public Driver getDriver() {
+        return driver;
+    }
+
+    public City getCity() {
+        return city;
+    }
+
+    public long getDeliveries() {
+        return sketch.getCount();
+    }
+
+    /**
+     * @param percentile between 0 and 100
+     * @return the distance in km below which the given percentage of the deliveries fall
+     */
+    public double getPercentile(double percentile) {
+        return (double) sketch.getPercentileMeters(percentile) / Delivery.METERS_PER_KM;
+    }
+
+    public double getMedian() {
+        return getPercentile(50);
+    }
+}
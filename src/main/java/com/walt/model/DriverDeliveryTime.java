@@ -0,0 +1,9 @@
+package com.walt.model;
+
+import java.util.Date;
+
+public interface DriverDeliveryTime {
+    Long getCityId();
+    Long getDriverId();
+    Date getDeliveryTime();
+}
@@ -2,5 +2,12 @@ package com.walt.model;
 
 public interface DriverDistance {
     Driver getDriver();
-    Long getTotalDistance();
+    Long getTotalDistanceMeters();
+
+    /**
+     * @return the exact total distance in km
+     */
+    default double getTotalDistance() {
+        return (double) getTotalDistanceMeters() / Delivery.METERS_PER_KM;
+    }
 }
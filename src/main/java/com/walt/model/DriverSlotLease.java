@@ -0,0 +1,80 @@
+package com.walt.model;
+
+import javax.persistence.*;
+import java.io.Serializable;
+import java.util.Date;
+import java.util.Objects;
+
+/**
+ * a claim of a driver for one hour slot. The (driver, slot) primary key is what stops two
+ * application nodes sharing the database from giving the same driver two deliveries in the same
+ * hour: only one of them can insert the row.
+ */
+@Entity
+@Table(name = "driver_slot_lease")
+@IdClass(DriverSlotLease.Key.class)
+public class DriverSlotLease {
+
+    @Id
+    @Column(name = "driver_id")
+    private Long driverId;
+
+    @Id
+    @Column(name = "slot")
+    private Long slot;
+
+    @Column(name = "created_at")
+    private Date createdAt;
+
+    public DriverSlotLease() {
+    }
+
+    public DriverSlotLease(Long driverId, Long slot, Date createdAt) {
+        this.driverId = driverId;
+        this.slot = slot;
+        this.createdAt = createdAt;
+    }
+
+    public Long getDriverId() {
+        return driverId;
+    }
+
+    public Long getSlot() {
+        return slot;
+    }
+
+    public Date getCreatedAt() {
+        return createdAt;
+    }
+
+    public static class Key implements Serializable {
+
+        private Long driverId;
+        private Long slot;
+
+        public Key() {
+        }
+
+        public Key(Long driverId, Long slot) {
+            this.driverId = driverId;
+            this.slot = slot;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key key = (Key) o;
+            return Objects.equals(driverId, key.driverId) && Objects.equals(slot, key.slot);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(driverId, slot);
+        }
+    }
+}
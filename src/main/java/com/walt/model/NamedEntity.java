@@ -4,8 +4,19 @@ import javax.persistence.Entity;
 import javax.persistence.GeneratedValue;
 import javax.persistence.GenerationType;
 import javax.persistence.Id;
-
+import javax.persistence.Table;
+import javax.persistence.UniqueConstraint;
+
+/**
+ * the base of all the named entities, which share one table. A customer is identified by its
+ * name, city and address, which the unique constraint enforces for customers created
+ * concurrently by different nodes. Since the table is shared, the constraint also applies to
+ * restaurants, which have an address as well. It does not cover a null address, as null values
+ * never collide, so an address is required to create a customer.
+ */
 @Entity
+@Table(uniqueConstraints = @UniqueConstraint(name = "uk_named_entity_name_city_address",
+        columnNames = {"dtype", "name", "city_id", "address"}))
 public class NamedEntity {
 
     @Id
@@ -0,0 +1,7 @@
+package com.walt.model;
+
+public interface NamedEntityId {
+    Long getId();
+    String getName();
+    Long getCityId();
+}
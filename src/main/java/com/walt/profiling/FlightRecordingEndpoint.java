@@ -0,0 +1,141 @@
+package com.walt.profiling;
+
+import jdk.jfr.Configuration;
+import jdk.jfr.Recording;
+import org.springframework.boot.actuate.endpoint.annotation.DeleteOperation;
+import org.springframework.boot.actuate.endpoint.annotation.ReadOperation;
+import org.springframework.boot.actuate.endpoint.annotation.WriteOperation;
+import org.springframework.boot.actuate.endpoint.web.annotation.WebEndpoint;
+import org.springframework.core.io.FileSystemResource;
+import org.springframework.core.io.Resource;
+import org.springframework.lang.Nullable;
+import org.springframework.stereotype.Component;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.text.ParseException;
+import java.time.Duration;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * an actuator endpoint which profiles a live node with java flight recorder. A POST starts a
+ * recording with the "profile" settings, bounded in both time and size, a GET dumps what was
+ * recorded so far as a .jfr file and a DELETE discards the recording.
+ * <p>
+ * A recording holds the environment variables and system properties of the process, which may
+ * include credentials, so the endpoint is not exposed over HTTP by default. Add it to
+ * "management.endpoints.web.exposure.include" only where the actuator is behind authentication.
+ */
+@Component
+@WebEndpoint(id = "flightrecording")
+public class FlightRecordingEndpoint {
+
+    protected static final String RECORDING_NAME = "walt-on-demand";
+    protected static final int DEFAULT_DURATION_SECONDS = 60;
+    protected static final int MAX_DURATION_SECONDS = 15 * 60;
+    protected static final int DEFAULT_MAX_SIZE_MB = 50;
+    protected static final int MAX_SIZE_MB = 250;
+
+    private Recording recording;
+
+    /**
+     * this method starts a new recording, replacing the current one if there is one
+     *
+     * @param durationSeconds how long to record, 60 seconds by default and 15 minutes at most
+     * @param maxSizeMb the size the recording is trimmed to, 50 MB by default and 250 MB at most
+     * @return a description of the recording
+     * @throws IOException
+     * @throws ParseException
+     */
+    @WriteOperation
+    public synchronized Map<String, Object> start(@Nullable Integer durationSeconds,
+                                                  @Nullable Integer maxSizeMb)
+            throws IOException, ParseException {
+        discard();
+        Recording newRecording = new Recording(Configuration.getConfiguration("profile"));
+        newRecording.setName(RECORDING_NAME);
+        newRecording.setToDisk(true);
+        newRecording.setDuration(Duration.ofSeconds(bound(durationSeconds,
+                DEFAULT_DURATION_SECONDS, MAX_DURATION_SECONDS)));
+        newRecording.setMaxSize(bound(maxSizeMb, DEFAULT_MAX_SIZE_MB, MAX_SIZE_MB) * 1024L * 1024L);
+        newRecording.enable(OrderStageEvent.class);
+        newRecording.enable(ReportEvent.class);
+        newRecording.start();
+        recording = newRecording;
+        return describe();
+    }
+
+    /**
+     * this method dumps the current recording, whether it is still running or not. The dump is
+     * written to a temporary file which is deleted once it has been streamed.
+     *
+     * @return the recording as a .jfr file, or null (404) if no recording was started
+     * @throws IOException
+     */
+    @ReadOperation(produces = "application/octet-stream")
+    public synchronized Resource dump() throws IOException {
+        if (recording == null) {
+            return null;
+        }
+        Path file = Files.createTempFile(RECORDING_NAME + "-", ".jfr");
+        try {
+            recording.dump(file);
+        } catch (IOException | RuntimeException e) {
+            Files.deleteIfExists(file);
+            throw e;
+        }
+        return new TemporaryFileResource(file);
+    }
+
+    @DeleteOperation
+    public synchronized void discard() {
+        if (recording != null) {
+            recording.close();
+            recording = null;
+        }
+    }
+
+    private Map<String, Object> describe() {
+        Map<String, Object> description = new LinkedHashMap<>();
+        description.put("name", recording.getName());
+        description.put("state", recording.getState().name());
+        description.put("duration", recording.getDuration().toString());
+        description.put("maxSize", recording.getMaxSize());
+        return description;
+    }
+
+    /**
+     * a file which is deleted once the stream reading it is closed
+     */
+    private static class TemporaryFileResource extends FileSystemResource {
+
+        private TemporaryFileResource(Path file) {
+            super(file);
+        }
+
+        @Override
+        public InputStream getInputStream() throws IOException {
+            return new FilterInputStream(super.getInputStream()) {
+                @Override
+                public void close() throws IOException {
+                    try {
+                        super.close();
+                    } finally {
+                        Files.deleteIfExists(getFile().toPath());
+                    }
+                }
+            };
+        }
+    }
+
+    private static int bound(Integer value, int defaultValue, int max) {
+        if (value == null || value <= 0) {
+            return defaultValue;
+        }
+        return Math.min(value, max);
+    }
+}
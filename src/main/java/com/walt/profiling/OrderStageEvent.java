@@ -0,0 +1,70 @@
+package com.walt.profiling;
+
+import com.walt.model.City;
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * a flight recorder event for one stage of assigning a driver to an order. Fields are only filled
+ * in when the event is enabled, so an order costs an allocation and two checks per stage while
+ * no recording is running.
+ */
+@Name("com.walt.OrderStage")
+@Label("Order Stage")
+@Category({"Walt", "Orders"})
+@Description("A stage of creating an order and assigning a driver")
+public class OrderStageEvent extends Event {
+
+    public static final String DRIVER_LOOKUP = "driverLookup";
+    public static final String AVAILABILITY_SCAN = "availabilityScan";
+    public static final String CACHED_REJECTION = "cachedRejection";
+    public static final String DRIVER_RANKING = "driverRanking";
+    public static final String DELIVERY_SAVE = "deliverySave";
+
+    @Label("Stage")
+    String stage;
+
+    @Label("City")
+    String city;
+
+    @Label("Candidate Count")
+    int candidateCount;
+
+    @Label("Rows Returned")
+    @Description("Rows the database returned, not counting the rows it scanned to produce them")
+    long rowsReturned;
+
+    /**
+     * this method creates the event of a stage and starts timing it
+     *
+     * @param stage
+     * @param city
+     * @return
+     */
+    public static OrderStageEvent start(String stage, City city) {
+        OrderStageEvent event = new OrderStageEvent();
+        if (event.isEnabled()) {
+            event.stage = stage;
+            event.city = city == null ? null : city.getName();
+            event.begin();
+        }
+        return event;
+    }
+
+    /**
+     * this method commits the event if it is enabled and passes the recording's threshold
+     *
+     * @param candidateCount
+     * @param rowsReturned
+     */
+    public void finish(int candidateCount, long rowsReturned) {
+        if (shouldCommit()) {
+            this.candidateCount = candidateCount;
+            this.rowsReturned = rowsReturned;
+            commit();
+        }
+    }
+}
@@ -0,0 +1,57 @@
+package com.walt.profiling;
+
+import com.walt.model.City;
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * a flight recorder event for a report call of WaltService
+ */
+@Name("com.walt.Report")
+@Label("Report")
+@Category({"Walt", "Reports"})
+@Description("A report generated by WaltService")
+public class ReportEvent extends Event {
+
+    @Label("Report")
+    String report;
+
+    @Label("City")
+    String city;
+
+    @Label("Rows Returned")
+    @Description("Rows the database returned, not counting the rows it scanned to produce them")
+    long rowsReturned;
+
+    /**
+     * this method creates the event of a report call and starts timing it
+     *
+     * @param report
+     * @param city the city the report is restricted to, or null
+     * @return
+     */
+    public static ReportEvent start(String report, City city) {
+        ReportEvent event = new ReportEvent();
+        if (event.isEnabled()) {
+            event.report = report;
+            event.city = city == null ? null : city.getName();
+            event.begin();
+        }
+        return event;
+    }
+
+    /**
+     * this method commits the event if it is enabled and passes the recording's threshold
+     *
+     * @param rowsReturned
+     */
+    public void finish(long rowsReturned) {
+        if (shouldCommit()) {
+            this.rowsReturned = rowsReturned;
+            commit();
+        }
+    }
+}
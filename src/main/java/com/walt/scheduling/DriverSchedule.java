@@ -0,0 +1,98 @@
+package com.walt.scheduling;
+
+import com.walt.analytics.DistanceSketch;
+
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * the in-memory scheduling view of a single driver: the number of deliveries he/she has in each
+ * hour slot, and the total and the distribution of the distances of his/her deliveries.
+ * <p>
+ * Only the slots from the retention horizon on are kept; older deliveries still count toward
+ * the distances. The slots reserved by orders whose delivery is not committed yet are kept
+ * apart, and are not part of a snapshot.
+ */
+class DriverSchedule {
+
+    private final TreeMap<Long, Integer> busySlots = new TreeMap<>();
+    private final Set<Long> reservedSlots = new HashSet<>();
+    volatile long totalDistanceMeters;
+    final DistanceSketch distances;
+
+    DriverSchedule() {
+        this(new DistanceSketch());
+    }
+
+    DriverSchedule(DistanceSketch distances) {
+        this.distances = distances;
+    }
+
+    synchronized boolean isBusy(long slot) {
+        return busySlots.containsKey(slot) || reservedSlots.contains(slot);
+    }
+
+    /**
+     * this method reserves a slot for an order
+     *
+     * @param slot
+     * @return false if the slot is busy or already reserved
+     */
+    synchronized boolean tryReserve(long slot) {
+        return !busySlots.containsKey(slot) && reservedSlots.add(slot);
+    }
+
+    synchronized void unreserve(long slot) {
+        reservedSlots.remove(slot);
+    }
+
+    /**
+     * this method adds a delivery. Its slot is only kept if it is not before oldestSlot.
+     *
+     * @param slot
+     * @param distanceMeters
+     * @param oldestSlot
+     */
+    synchronized void add(long slot, int distanceMeters, long oldestSlot) {
+        if (slot >= oldestSlot) {
+            busySlots.merge(slot, 1, Integer::sum);
+        }
+        totalDistanceMeters += distanceMeters;
+        distances.add(distanceMeters);
+    }
+
+    /**
+     * this method removes a delivery. The slot is freed only when it was the last delivery of
+     * the driver in it.
+     *
+     * @param slot
+     * @param distanceMeters
+     */
+    synchronized void remove(long slot, int distanceMeters) {
+        busySlots.computeIfPresent(slot, (busySlot, count) -> count > 1 ? count - 1 : null);
+        totalDistanceMeters -= distanceMeters;
+        distances.remove(distanceMeters);
+    }
+
+    synchronized void setSlot(long slot, int count) {
+        busySlots.put(slot, count);
+    }
+
+    /**
+     * this method forgets the slots before oldestSlot
+     *
+     * @param oldestSlot
+     */
+    synchronized void prune(long oldestSlot) {
+        busySlots.headMap(oldestSlot).clear();
+    }
+
+    /**
+     * @return a copy of the busy slots and their delivery counts, in slot order
+     */
+    synchronized Map<Long, Integer> copyBusySlots() {
+        return new TreeMap<>(busySlots);
+    }
+}
@@ -0,0 +1,218 @@
+package com.walt.scheduling;
+
+import com.walt.dao.DeliveryRepository;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.dao.DuplicateKeyException;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionDefinition;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * this class claims (driver, hour slot) pairs in the driver_slot_lease table, so several
+ * application nodes sharing one database never assign a driver twice in the same hour. The
+ * in-memory scheduling state of a node only knows the deliveries it made itself; the lease
+ * table is what all the nodes agree on.
+ * <p>
+ * A claim is a plain insert of the (driver, slot) primary key, committed on its own right away.
+ * It either succeeds or fails at once with a duplicate key, so a node never waits for another
+ * one and moves on to its next candidate instead. Leases are enabled with
+ * "walt.lease.enabled" and purged once their slot is older than "walt.lease.retention-hours".
+ * <p>
+ * A node which crashes between claiming a lease and committing its delivery leaves the lease
+ * behind. The purge also reclaims the leases of upcoming slots which are older than
+ * "walt.lease.orphan-minutes" and have no delivery of their driver in their slot, so such a
+ * slot is taken for that long at most. The delay must be longer than an order takes, and, in
+ * write-behind mode, than a journaled delivery may wait before it is saved.
+ * <p>
+ * Leases only cover a driver who looks free to a node but was taken by another one. The other
+ * way round is not covered: a delivery deleted or moved on one node is only seen by that node's
+ * scheduling state and no available driver cache, so the node which made the delivery keeps
+ * the driver busy in the old slot until it restarts without a snapshot or rebuilds its state.
+ * With several nodes, cancel and move a delivery through the node that made it, or rebuild the
+ * scheduling state of the other nodes (SchedulingState.rebuild) afterwards.
+ */
+@Component
+public class DriverSlotLeases {
+
+    private static final Logger log = LoggerFactory.getLogger(DriverSlotLeases.class);
+
+    protected static final String ERROR_MSG_SLOT_LEASED =
+            "ERROR : The driver %d is already taken in hour slot %d";
+    protected static final String INSERT_LEASE =
+            "INSERT INTO driver_slot_lease (driver_id, slot, created_at) VALUES (?, ?, ?)";
+    protected static final String DELETE_LEASE =
+            "DELETE FROM driver_slot_lease WHERE driver_id = ? AND slot = ?";
+    protected static final String DELETE_LEASES_BEFORE =
+            "DELETE FROM driver_slot_lease WHERE slot < ?";
+    protected static final String SELECT_LEASES_CREATED_BEFORE =
+            "SELECT driver_id, slot FROM driver_slot_lease WHERE created_at < ? AND slot >= ?";
+
+    @Value("${walt.lease.enabled:false}")
+    private boolean enabled;
+    @Value("${walt.lease.retention-hours:24}")
+    private int retentionHours;
+    @Value("${walt.lease.orphan-minutes:10}")
+    private int orphanMinutes;
+    @Autowired
+    private DeliveryRepository deliveryRepository;
+
+    private final JdbcTemplate jdbcTemplate;
+    private final TransactionTemplate newTransaction;
+    private final Counter conflicts;
+
+    @Autowired
+    public DriverSlotLeases(JdbcTemplate jdbcTemplate,
+                            PlatformTransactionManager transactionManager,
+                            MeterRegistry meterRegistry) {
+        this.jdbcTemplate = jdbcTemplate;
+        this.newTransaction = new TransactionTemplate(transactionManager);
+        this.newTransaction.setPropagationBehavior(TransactionDefinition.PROPAGATION_REQUIRES_NEW);
+        this.conflicts = Counter.builder("walt.lease.conflicts")
+                .description("Driver slot claims lost to another order")
+                .register(meterRegistry);
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * this method claims the slot of deliveryTime for a driver. The claim is committed in its own
+     * transaction, whatever transaction the caller is in, so the other nodes see it right away.
+     *
+     * @param driverId
+     * @param deliveryTime
+     * @return true if the driver is now leased to the caller, false if someone else holds the slot
+     */
+    public boolean tryClaim(Long driverId, Date deliveryTime) {
+        try {
+            newTransaction.execute(status -> jdbcTemplate.update(INSERT_LEASE, driverId,
+                    SchedulingState.toSlot(deliveryTime), new Date()));
+            return true;
+        } catch (DuplicateKeyException e) {
+            conflicts.increment();
+            return false;
+        }
+    }
+
+    /**
+     * this method claims the slot of deliveryTime for a driver in the caller's transaction, so the
+     * claim commits or rolls back with the change that needs it. It is used when a delivery is
+     * moved to another driver or time.
+     *
+     * @param driverId
+     * @param deliveryTime
+     * @throws RuntimeException if someone else holds the slot
+     */
+    public void claim(Long driverId, Date deliveryTime) {
+        long slot = SchedulingState.toSlot(deliveryTime);
+        try {
+            jdbcTemplate.update(INSERT_LEASE, driverId, slot, new Date());
+        } catch (DuplicateKeyException e) {
+            conflicts.increment();
+            throw new RuntimeException(String.format(ERROR_MSG_SLOT_LEASED, driverId, slot), e);
+        }
+    }
+
+    /**
+     * this method gives a slot of a driver back right away, in its own transaction
+     *
+     * @param driverId
+     * @param deliveryTime
+     */
+    public void release(Long driverId, Date deliveryTime) {
+        if (enabled) {
+            delete(driverId, SchedulingState.toSlot(deliveryTime));
+        }
+    }
+
+    /**
+     * this method gives a slot of a driver back once the current transaction commits, so a
+     * rolled back cancellation does not free a slot that is still taken. Outside a transaction
+     * the slot is given back right away.
+     *
+     * @param driverId
+     * @param deliveryTime
+     */
+    public void releaseAfterCommit(Long driverId, Date deliveryTime) {
+        if (!enabled) {
+            return;
+        }
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            TransactionSynchronizationManager.registerSynchronization(
+                    new TransactionSynchronization() {
+                        @Override
+                        public void afterCommit() {
+                            release(driverId, deliveryTime);
+                        }
+                    });
+        } else {
+            release(driverId, deliveryTime);
+        }
+    }
+
+    public long getConflicts() {
+        return (long) conflicts.count();
+    }
+
+    @Scheduled(fixedDelayString = "${walt.lease.purge-interval-ms:3600000}",
+            initialDelayString = "${walt.lease.purge-interval-ms:3600000}")
+    public void purge() {
+        if (!enabled) {
+            return;
+        }
+        long oldestSlot = SchedulingState.toSlot(new Date()) -
+                TimeUnit.HOURS.toMillis(retentionHours) / SchedulingState.SLOT_MILLIS;
+        int purged = newTransaction.execute(status -> jdbcTemplate.update(DELETE_LEASES_BEFORE,
+                oldestSlot));
+        log.debug("Purged {} driver slot leases before slot {}", purged, oldestSlot);
+        int reclaimed = reclaimOrphans();
+        if (reclaimed > 0) {
+            log.info("Reclaimed {} driver slot leases without a delivery", reclaimed);
+        }
+    }
+
+    /**
+     * this method deletes the leases of upcoming slots claimed more than the orphan delay ago
+     * whose driver has no delivery in the slot, left by orders which never committed
+     *
+     * @return the number of leases deleted
+     */
+    private int reclaimOrphans() {
+        Date createdBefore = new Date(System.currentTimeMillis() -
+                TimeUnit.MINUTES.toMillis(orphanMinutes));
+        List<Map<String, Object>> leases = jdbcTemplate.queryForList(
+                SELECT_LEASES_CREATED_BEFORE, createdBefore,
+                SchedulingState.toSlot(new Date()));
+        int reclaimed = 0;
+        for (Map<String, Object> lease : leases) {
+            Long driverId = ((Number) lease.get("driver_id")).longValue();
+            long slot = ((Number) lease.get("slot")).longValue();
+            if (deliveryRepository.countDriverDeliveriesBetween(driverId,
+                    SchedulingState.slotStart(slot), SchedulingState.slotStart(slot + 1)) == 0) {
+                delete(driverId, slot);
+                reclaimed++;
+            }
+        }
+        return reclaimed;
+    }
+
+    private void delete(Long driverId, long slot) {
+        newTransaction.execute(status -> jdbcTemplate.update(DELETE_LEASE, driverId, slot));
+    }
+}
@@ -0,0 +1,145 @@
+package com.walt.scheduling;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import java.util.Date;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * this class remembers the (city, hour slot) pairs in which no driver was available, so further
+ * orders for a fully booked slot fail without reading the drivers of the city again.
+ * <p>
+ * An entry can only become wrong when a driver joins the city, or when a delivery of the city
+ * leaves its slot (it is deleted, moved to another time or given to another driver). Those
+ * changes invalidate the entries they affect and bump the city's version; an order that started
+ * its search before the bump cannot mark the slot as full. Slots are forgotten once they are in
+ * the past, so the cache does not grow with time.
+ * <p>
+ * Only the changes made on this node invalidate the cache; see DriverSlotLeases for changes
+ * made on other nodes sharing the database.
+ */
+@Component
+public class NoAvailableDriverCache {
+
+    private final Map<Long, CityEntry> cities = new ConcurrentHashMap<>();
+    private final Counter hits;
+    private final Counter savedDriverChecks;
+
+    @Autowired
+    public NoAvailableDriverCache(MeterRegistry meterRegistry) {
+        this.hits = Counter.builder("walt.orders.no.driver.cache.hits")
+                .description("Orders rejected from the no available driver cache")
+                .register(meterRegistry);
+        this.savedDriverChecks = Counter.builder("walt.orders.no.driver.cache.saved.checks")
+                .description("Driver availability checks skipped thanks to the cache")
+                .register(meterRegistry);
+    }
+
+    /**
+     * this method checks if the slot of deliveryTime is known to be fully booked in the city, and
+     * counts the work saved if it is
+     *
+     * @param cityId
+     * @param deliveryTime
+     * @return
+     */
+    public boolean isFullyBooked(Long cityId, Date deliveryTime) {
+        CityEntry entry = cities.get(cityId);
+        if (entry == null) {
+            return false;
+        }
+        Integer drivers;
+        synchronized (entry) {
+            drivers = entry.fullSlots.contains(SchedulingState.toSlot(deliveryTime)) ?
+                    entry.drivers : null;
+        }
+        if (drivers == null) {
+            return false;
+        }
+        hits.increment();
+        savedDriverChecks.increment(drivers);
+        return true;
+    }
+
+    /**
+     * this method returns the current version of the city. It must be taken before the city's
+     * drivers are read, and passed back to markFullyBooked.
+     *
+     * @param cityId
+     * @return
+     */
+    public long getVersion(Long cityId) {
+        CityEntry entry = getEntry(cityId);
+        synchronized (entry) {
+            return entry.version;
+        }
+    }
+
+    /**
+     * this method remembers that no driver is available in the slot of deliveryTime, unless the
+     * city changed since the given version was taken or the slot is already in the past
+     *
+     * @param cityId
+     * @param deliveryTime
+     * @param version
+     * @param drivers the number of drivers checked to find that out
+     */
+    public void markFullyBooked(Long cityId, Date deliveryTime, long version, int drivers) {
+        CityEntry entry = getEntry(cityId);
+        long slot = SchedulingState.toSlot(deliveryTime);
+        long currentSlot = SchedulingState.toSlot(new Date());
+        synchronized (entry) {
+            entry.fullSlots.headSet(currentSlot).clear();
+            if (entry.version == version && slot >= currentSlot) {
+                entry.fullSlots.add(slot);
+                entry.drivers = drivers;
+            }
+        }
+    }
+
+    public void invalidateSlot(Long cityId, Date deliveryTime) {
+        CityEntry entry = getEntry(cityId);
+        synchronized (entry) {
+            entry.version++;
+            entry.fullSlots.remove(SchedulingState.toSlot(deliveryTime));
+        }
+    }
+
+    public void invalidateCity(Long cityId) {
+        CityEntry entry = getEntry(cityId);
+        synchronized (entry) {
+            entry.version++;
+            entry.fullSlots.clear();
+        }
+    }
+
+    public void clear() {
+        for (Long cityId : cities.keySet()) {
+            invalidateCity(cityId);
+        }
+    }
+
+    public long getHits() {
+        return (long) hits.count();
+    }
+
+    public long getSavedDriverChecks() {
+        return (long) savedDriverChecks.count();
+    }
+
+    private CityEntry getEntry(Long cityId) {
+        return cities.computeIfAbsent(cityId, id -> new CityEntry());
+    }
+
+    private static class CityEntry {
+
+        private long version;
+        private int drivers;
+        private final TreeSet<Long> fullSlots = new TreeSet<>();
+    }
+}
@@ -0,0 +1,193 @@
+package com.walt.scheduling;
+
+import com.walt.model.Delivery;
+import com.walt.model.Driver;
+import org.hibernate.engine.spi.SessionFactoryImplementor;
+import org.hibernate.event.service.spi.EventListenerRegistry;
+import org.hibernate.event.spi.EventType;
+import org.hibernate.event.spi.PostDeleteEvent;
+import org.hibernate.event.spi.PostDeleteEventListener;
+import org.hibernate.event.spi.PostInsertEvent;
+import org.hibernate.event.spi.PostInsertEventListener;
+import org.hibernate.event.spi.PostUpdateEvent;
+import org.hibernate.event.spi.PostUpdateEventListener;
+import org.hibernate.persister.entity.EntityPersister;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import javax.annotation.PostConstruct;
+import javax.persistence.EntityManagerFactory;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.Objects;
+
+/**
+ * this class keeps the scheduling state, the no available driver cache and the driver slot
+ * leases in line with changes made to drivers and deliveries outside of order intake: a new
+ * driver in a city, a delivery which is saved without an order, and a delivery which is deleted
+ * or moved to another time or driver.
+ * <p>
+ * The changes are applied once the transaction that made them commits, so a rolled back
+ * cancellation or move leaves the state and the cache as they were.
+ */
+@Component
+public class SchedulingEventListener implements PostInsertEventListener, PostUpdateEventListener,
+        PostDeleteEventListener {
+
+    @Autowired
+    private EntityManagerFactory entityManagerFactory;
+    @Autowired
+    private SchedulingState schedulingState;
+    @Autowired
+    private NoAvailableDriverCache noAvailableDriverCache;
+    @Autowired
+    private DriverSlotLeases driverSlotLeases;
+
+    @PostConstruct
+    public void register() {
+        EventListenerRegistry registry = entityManagerFactory
+                .unwrap(SessionFactoryImplementor.class)
+                .getServiceRegistry()
+                .getService(EventListenerRegistry.class);
+        registry.appendListeners(EventType.POST_INSERT, this);
+        registry.appendListeners(EventType.POST_UPDATE, this);
+        registry.appendListeners(EventType.POST_DELETE, this);
+    }
+
+    @Override
+    public void onPostInsert(PostInsertEvent event) {
+        if (event.getEntity() instanceof Driver) {
+            Driver driver = (Driver) event.getEntity();
+            afterCommit(() -> invalidateDriverCity(driver));
+        } else if (event.getEntity() instanceof Delivery) {
+            Delivery delivery = (Delivery) event.getEntity();
+            afterCommit(() -> schedulingState.recordInserted(delivery));
+        }
+    }
+
+    @Override
+    public void onPostUpdate(PostUpdateEvent event) {
+        if (event.getEntity() instanceof Driver) {
+            Driver driver = (Driver) event.getEntity();
+            afterCommit(() -> invalidateDriverCity(driver));
+        } else if (event.getEntity() instanceof Delivery) {
+            onDeliveryUpdate((Delivery) event.getEntity(), event.getOldState(),
+                    event.getPersister());
+        }
+    }
+
+    @Override
+    public void onPostDelete(PostDeleteEvent event) {
+        if (event.getEntity() instanceof Delivery) {
+            Delivery delivery = (Delivery) event.getEntity();
+            Driver driver = delivery.getDriver();
+            Date deliveryTime = delivery.getDeliveryTime();
+            int distanceMeters = delivery.getDistanceMeters();
+            if (driver != null) {
+                afterCommit(() -> {
+                    schedulingState.release(driver.getId(), cityId(driver), deliveryTime,
+                            distanceMeters);
+                    invalidateSlot(driver, deliveryTime);
+                });
+                driverSlotLeases.releaseAfterCommit(driver.getId(), deliveryTime);
+            }
+        }
+    }
+
+    @Override
+    public boolean requiresPostCommitHanding(EntityPersister persister) {
+        return false;
+    }
+
+    /**
+     * this method moves an updated delivery in the scheduling state from the driver and slot it
+     * had to the ones it has now, and invalidates the slot it left, once the update commits
+     */
+    private void onDeliveryUpdate(Delivery delivery, Object[] oldState,
+                                  EntityPersister persister) {
+        if (oldState == null) {
+            Driver driver = delivery.getDriver();
+            if (driver != null) {
+                afterCommit(() -> invalidateDriverCity(driver));
+            }
+            return;
+        }
+        String[] properties = persister.getPropertyNames();
+        Driver oldDriver = (Driver) oldState[Arrays.asList(properties).indexOf("driver")];
+        Date oldTime = (Date) oldState[Arrays.asList(properties).indexOf("deliveryTime")];
+        int oldDistance = (Integer) oldState[Arrays.asList(properties).indexOf("distanceMeters")];
+
+        Driver newDriver = delivery.getDriver();
+        Date newTime = delivery.getDeliveryTime();
+        int newDistance = delivery.getDistanceMeters();
+        boolean driverChanged = !Objects.equals(driverId(oldDriver), driverId(newDriver));
+        boolean slotChanged = oldTime == null || newTime == null ||
+                SchedulingState.toSlot(oldTime) != SchedulingState.toSlot(newTime);
+        boolean moved = driverChanged || slotChanged;
+        if (!moved && oldDistance == newDistance) {
+            return;
+        }
+        if (oldDriver != null && oldTime != null) {
+            afterCommit(() -> {
+                schedulingState.release(oldDriver.getId(), cityId(oldDriver), oldTime,
+                        oldDistance);
+                if (moved) {
+                    invalidateSlot(oldDriver, oldTime);
+                }
+            });
+            if (moved) {
+                driverSlotLeases.releaseAfterCommit(oldDriver.getId(), oldTime);
+            }
+        }
+        if (newDriver != null && newTime != null) {
+            afterCommit(() -> schedulingState.add(newDriver.getId(), cityId(newDriver), newTime,
+                    newDistance));
+            if (moved && driverSlotLeases.isEnabled()) {
+                // fails the update if another order or node already holds the new slot
+                driverSlotLeases.claim(newDriver.getId(), newTime);
+            }
+        }
+    }
+
+    private void invalidateDriverCity(Driver driver) {
+        if (driver.getCity() != null) {
+            noAvailableDriverCache.invalidateCity(driver.getCity().getId());
+        }
+    }
+
+    private void invalidateSlot(Driver driver, Date deliveryTime) {
+        if (driver.getCity() != null && deliveryTime != null) {
+            noAvailableDriverCache.invalidateSlot(driver.getCity().getId(), deliveryTime);
+        }
+    }
+
+    /**
+     * this method runs an action once the current transaction commits, or right away outside a
+     * transaction
+     *
+     * @param action
+     */
+    private static void afterCommit(Runnable action) {
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            TransactionSynchronizationManager.registerSynchronization(
+                    new TransactionSynchronization() {
+                        @Override
+                        public void afterCommit() {
+                            action.run();
+                        }
+                    });
+        } else {
+            action.run();
+        }
+    }
+
+    private static Long driverId(Driver driver) {
+        return driver == null ? null : driver.getId();
+    }
+
+    private static Long cityId(Driver driver) {
+        return driver.getCity() == null ? null : driver.getCity().getId();
+    }
+}
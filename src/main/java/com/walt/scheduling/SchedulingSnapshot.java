@@ -0,0 +1,180 @@
+package com.walt.scheduling;
+
+import com.walt.analytics.DistanceSketch;
+
+import java.io.IOException;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * a compact binary image of the scheduling state. The layout is:
+ * <pre>
+ * int magic | int version | long highWaterId | int driverCount
+ * (long driverId | long totalDistanceMeters | int slotCount |
+ *     (long slot | int deliveryCount) * slotCount | sketch) * driverCount
+ * int cityCount | (long cityId | sketch) * cityCount
+ * long crc32 of everything above
+ * </pre>
+ * where a sketch is written by DistanceSketch.writeTo. A snapshot of another version is ignored
+ * and the state is rebuilt from the deliveries.
+ * <p>
+ * Snapshots are written to a temporary file and atomically moved into place, and are read back
+ * through a memory mapped buffer so loading does not copy the file through the heap.
+ */
+public class SchedulingSnapshot {
+
+    static final int MAGIC = 0x57414C54;
+    static final int VERSION = 4;
+
+    private static final int HEADER_BYTES = 4 + 4 + 8 + 4;
+    private static final int DRIVER_HEADER_BYTES = 8 + 8 + 4;
+    private static final int SLOT_BYTES = 8 + 4;
+    private static final int CITY_COUNT_BYTES = 4;
+    private static final int CITY_HEADER_BYTES = 8;
+    private static final int CRC_BYTES = 8;
+
+    private final long highWaterId;
+    private final Map<Long, DriverSchedule> schedules;
+    private final Map<Long, DistanceSketch> citySketches;
+
+    private SchedulingSnapshot(long highWaterId, Map<Long, DriverSchedule> schedules,
+                               Map<Long, DistanceSketch> citySketches) {
+        this.highWaterId = highWaterId;
+        this.schedules = schedules;
+        this.citySketches = citySketches;
+    }
+
+    public long getHighWaterId() {
+        return highWaterId;
+    }
+
+    Map<Long, DriverSchedule> getSchedules() {
+        return schedules;
+    }
+
+    Map<Long, DistanceSketch> getCitySketches() {
+        return citySketches;
+    }
+
+    /**
+     * this method writes the given schedules to file. The caller must make sure the schedules do
+     * not change while they are being written.
+     *
+     * @param file
+     * @param highWaterId the id of the last delivery reflected in the schedules
+     * @param schedules
+     * @param citySketches
+     * @throws IOException
+     */
+    static void write(Path file, long highWaterId, Map<Long, DriverSchedule> schedules,
+                      Map<Long, DistanceSketch> citySketches) throws IOException {
+        long size = HEADER_BYTES + CITY_COUNT_BYTES + CRC_BYTES;
+        Map<Long, Map<Long, Integer>> busySlots = new HashMap<>(schedules.size() * 2);
+        for (Map.Entry<Long, DriverSchedule> entry : schedules.entrySet()) {
+            Map<Long, Integer> slots = entry.getValue().copyBusySlots();
+            busySlots.put(entry.getKey(), slots);
+            size += DRIVER_HEADER_BYTES + (long) SLOT_BYTES * slots.size() +
+                    entry.getValue().distances.getSerializedSize();
+        }
+        for (DistanceSketch sketch : citySketches.values()) {
+            size += CITY_HEADER_BYTES + sketch.getSerializedSize();
+        }
+        Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+        Files.deleteIfExists(tmp);
+        try (FileChannel channel = FileChannel.open(tmp, StandardOpenOption.CREATE_NEW,
+                StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+            buffer.putInt(MAGIC).putInt(VERSION).putLong(highWaterId).putInt(schedules.size());
+            for (Map.Entry<Long, DriverSchedule> entry : schedules.entrySet()) {
+                Map<Long, Integer> slots = busySlots.get(entry.getKey());
+                buffer.putLong(entry.getKey()).putLong(entry.getValue().totalDistanceMeters)
+                        .putInt(slots.size());
+                for (Map.Entry<Long, Integer> slot : slots.entrySet()) {
+                    buffer.putLong(slot.getKey()).putInt(slot.getValue());
+                }
+                entry.getValue().distances.writeTo(buffer);
+            }
+            buffer.putInt(citySketches.size());
+            for (Map.Entry<Long, DistanceSketch> entry : citySketches.entrySet()) {
+                buffer.putLong(entry.getKey());
+                entry.getValue().writeTo(buffer);
+            }
+            buffer.putLong(checksum(buffer, buffer.position()));
+            buffer.force();
+        }
+        Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * this method reads a snapshot from file.
+     *
+     * @param file
+     * @return the snapshot, or null if the file does not exist or is not a valid snapshot
+     * @throws IOException
+     */
+    static SchedulingSnapshot read(Path file) throws IOException {
+        if (!Files.isRegularFile(file)) {
+            return null;
+        }
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size < HEADER_BYTES + CRC_BYTES) {
+                return null;
+            }
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            if (buffer.getLong((int) size - CRC_BYTES) != checksum(buffer,
+                    (int) size - CRC_BYTES)) {
+                return null;
+            }
+            if (buffer.getInt() != MAGIC || buffer.getInt() != VERSION) {
+                return null;
+            }
+            long highWaterId = buffer.getLong();
+            int driverCount = buffer.getInt();
+            Map<Long, DriverSchedule> schedules = new HashMap<>(driverCount * 2);
+            for (int i = 0; i < driverCount; i++) {
+                long driverId = buffer.getLong();
+                long totalDistanceMeters = buffer.getLong();
+                int slotCount = buffer.getInt();
+                long[] slots = new long[slotCount];
+                int[] counts = new int[slotCount];
+                for (int j = 0; j < slotCount; j++) {
+                    slots[j] = buffer.getLong();
+                    counts[j] = buffer.getInt();
+                }
+                DriverSchedule schedule = new DriverSchedule(DistanceSketch.readFrom(buffer));
+                schedule.totalDistanceMeters = totalDistanceMeters;
+                for (int j = 0; j < slotCount; j++) {
+                    schedule.setSlot(slots[j], counts[j]);
+                }
+                schedules.put(driverId, schedule);
+            }
+            int cityCount = buffer.getInt();
+            Map<Long, DistanceSketch> citySketches = new HashMap<>(cityCount * 2);
+            for (int i = 0; i < cityCount; i++) {
+                long cityId = buffer.getLong();
+                citySketches.put(cityId, DistanceSketch.readFrom(buffer));
+            }
+            return new SchedulingSnapshot(highWaterId, schedules, citySketches);
+        }
+    }
+
+    private static long checksum(ByteBuffer buffer, int length) {
+        ByteBuffer view = buffer.duplicate();
+        ((Buffer) view).position(0);
+        ((Buffer) view).limit(length);
+        CRC32 crc = new CRC32();
+        crc.update(view);
+        return crc.getValue();
+    }
+}
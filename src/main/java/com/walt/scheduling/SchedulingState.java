@@ -0,0 +1,556 @@
+package com.walt.scheduling;
+
+import com.walt.analytics.DistanceSketch;
+import com.walt.dao.DeliveryRepository;
+import com.walt.journal.DeliveryWriteBehind;
+import com.walt.model.Delivery;
+import com.walt.model.DeliverySlot;
+import com.walt.model.Driver;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Consumer;
+
+/**
+ * this class keeps the scheduling state (busy hour slots and total distance of every driver) in
+ * memory, so assigning a driver does not scan the delivery history of every candidate. It also
+ * keeps a distance sketch per driver and per city for the percentile reports.
+ * <p>
+ * The state is checkpointed to a binary snapshot, "walt.scheduling.snapshot-file", unless it is
+ * set to an empty value. On startup the snapshot is loaded and only the deliveries written after
+ * its high-water id are read from the database, so startup time does not grow with the delivery
+ * history. Snapshots are off when driver slot leases are enabled: several nodes then share the
+ * id sequence, so another node may commit a delivery with an id below this node's high-water
+ * id, and a restart from the snapshot would never read it.
+ * <p>
+ * An order reserves the slot of its driver, and the delivery is only recorded in the state once
+ * it is committed. A shared lock which the checkpoint takes exclusively is held from persisting
+ * the delivery until it is recorded or the order fails, so a snapshot never holds a delivery
+ * that is not committed yet, nor misses one below its high-water id. Reservations are not part
+ * of a snapshot.
+ * <p>
+ * Busy slots are only kept for "walt.scheduling.retention-hours" back, so memory and the
+ * snapshot size follow the number of upcoming deliveries rather than the whole history. An
+ * order for an older slot is checked against the database instead.
+ * <p>
+ * The state only learns about the deliveries made, moved and deleted through this node; see
+ * DriverSlotLeases for several nodes sharing one database.
+ */
+@Component
+public class SchedulingState {
+
+    private static final Logger log = LoggerFactory.getLogger(SchedulingState.class);
+
+    protected static final long SLOT_MILLIS = TimeUnit.HOURS.toMillis(1);
+    protected static final int CATCH_UP_PAGE_SIZE = 10000;
+
+    @Autowired
+    private DeliveryRepository deliveryRepository;
+    @Autowired
+    private DeliveryWriteBehind deliveryWriteBehind;
+    @Autowired
+    private NoAvailableDriverCache noAvailableDriverCache;
+
+    @Value("${walt.scheduling.snapshot-file:walt-scheduling.snapshot}")
+    private String snapshotFile;
+    @Value("${walt.lease.enabled:false}")
+    private boolean leasesEnabled;
+    @Value("${walt.scheduling.retention-hours:24}")
+    private int retentionHours;
+
+    private final Map<Long, DriverSchedule> schedules = new ConcurrentHashMap<>();
+    private final Map<Long, DistanceSketch> citySketches = new ConcurrentHashMap<>();
+    private final AtomicLong highWaterId = new AtomicLong();
+    private final ReadWriteLock checkpointLock = new ReentrantReadWriteLock();
+    private final Set<Delivery> orderDeliveries =
+            Collections.synchronizedSet(Collections.newSetFromMap(new WeakHashMap<>()));
+    private volatile boolean loaded;
+
+    /**
+     * this method returns the hour slot a given time falls in. Each delivery takes a full hour,
+     * so two deliveries collide exactly when they share a slot.
+     *
+     * @param time
+     * @return
+     */
+    public static long toSlot(Date time) {
+        return Math.floorDiv(time.getTime(), SLOT_MILLIS);
+    }
+
+    /**
+     * this method returns the time an hour slot starts at
+     *
+     * @param slot
+     * @return
+     */
+    public static Date slotStart(long slot) {
+        return new Date(slot * SLOT_MILLIS);
+    }
+
+    @PostConstruct
+    public void load() {
+        deliveryWriteBehind.setDeadLetterListener(this::releaseDeadLetter);
+        long start = System.currentTimeMillis();
+        checkpointLock.writeLock().lock();
+        try {
+            Path snapshot = getSnapshotPath();
+            if (snapshot != null) {
+                try {
+                    restore(SchedulingSnapshot.read(snapshot));
+                } catch (IOException e) {
+                    log.warn("Could not read scheduling snapshot {}, rebuilding from deliveries",
+                            snapshot, e);
+                }
+            }
+            int caughtUp = catchUp();
+            prune();
+            loaded = true;
+            log.info("Scheduling state ready in {} ms: {} drivers, high-water id {}, {} " +
+                            "deliveries read from the database",
+                    System.currentTimeMillis() - start, schedules.size(), highWaterId.get(),
+                    caughtUp);
+        } finally {
+            checkpointLock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * this method drops the state and reads it again from all the deliveries. It is meant for
+     * deliveries written to the database behind the application's back, like a bulk import. The
+     * snapshot file, if any, is discarded since it no longer matches the database.
+     */
+    public void rebuild() {
+        long start = System.currentTimeMillis();
+        checkpointLock.writeLock().lock();
+        try {
+            schedules.clear();
+            citySketches.clear();
+            highWaterId.set(0);
+            Path snapshot = getSnapshotPath();
+            if (snapshot != null) {
+                try {
+                    Files.deleteIfExists(snapshot);
+                } catch (IOException e) {
+                    log.warn("Could not discard scheduling snapshot {}", snapshot, e);
+                }
+            }
+            int caughtUp = catchUp();
+            log.info("Scheduling state rebuilt in {} ms from {} deliveries",
+                    System.currentTimeMillis() - start, caughtUp);
+        } finally {
+            checkpointLock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * this method checks if a driver has no delivery, nor a reservation, in the hour slot of
+     * deliveryTime
+     *
+     * @param driver
+     * @param deliveryTime
+     * @return
+     */
+    public boolean isAvailable(Driver driver, Date deliveryTime) {
+        long slot = toSlot(deliveryTime);
+        if (!isRetained(deliveryTime)) {
+            return deliveryRepository.countDriverDeliveriesBetween(driver.getId(),
+                    slotStart(slot), slotStart(slot + 1)) == 0;
+        }
+        DriverSchedule schedule = schedules.get(driver.getId());
+        return schedule == null || !schedule.isBusy(slot);
+    }
+
+    /**
+     * this method checks if the busy slots of deliveryTime are kept in memory. If not, the
+     * availability of each driver in it is read from the database.
+     *
+     * @param deliveryTime
+     * @return
+     */
+    public boolean isRetained(Date deliveryTime) {
+        return toSlot(deliveryTime) >= getOldestSlot();
+    }
+
+    /**
+     * this method returns a driver total distance in meters
+     *
+     * @param driver
+     * @return
+     */
+    public long getTotalDistanceMeters(Driver driver) {
+        DriverSchedule schedule = schedules.get(driver.getId());
+        return schedule == null ? 0 : schedule.totalDistanceMeters;
+    }
+
+    /**
+     * @param driverId
+     * @return a copy of the distance sketch of a driver
+     */
+    public DistanceSketch getDriverSketch(Long driverId) {
+        DriverSchedule schedule = schedules.get(driverId);
+        return schedule == null ? new DistanceSketch() : schedule.distances.copy();
+    }
+
+    /**
+     * @param cityId
+     * @return a copy of the distance sketch of a city
+     */
+    public DistanceSketch getCitySketch(Long cityId) {
+        DistanceSketch sketch = citySketches.get(cityId);
+        return sketch == null ? new DistanceSketch() : sketch.copy();
+    }
+
+    /**
+     * @return the sketches of all the cities merged together
+     */
+    public DistanceSketch getGlobalSketch() {
+        DistanceSketch global = new DistanceSketch();
+        for (DistanceSketch sketch : citySketches.values()) {
+            global.merge(sketch);
+        }
+        return global;
+    }
+
+    /**
+     * this method reserves the slot of deliveryTime for a driver, if he/she is available in it
+     *
+     * @param driver
+     * @param deliveryTime
+     * @return the reservation, or null if the driver is busy or already reserved in that slot
+     */
+    public Reservation tryReserve(Driver driver, Date deliveryTime) {
+        long slot = toSlot(deliveryTime);
+        if (slot < getOldestSlot() && !isAvailable(driver, deliveryTime)) {
+            return null;
+        }
+        DriverSchedule schedule = schedules.computeIfAbsent(driver.getId(),
+                id -> new DriverSchedule());
+        return schedule.tryReserve(slot) ? new Reservation(driver, slot) : null;
+    }
+
+    /**
+     * this method runs the step that persists the delivery of a reservation, and records the
+     * delivery once it is committed: after the surrounding transaction commits, or right away
+     * outside a transaction. The reservation is given up if the step fails or the transaction
+     * rolls back.
+     *
+     * @param reservation
+     * @param delivery
+     * @param persistStep
+     * @return the persisted delivery
+     */
+    public Delivery persistAndRecord(Reservation reservation, Delivery delivery,
+                                     Consumer<Delivery> persistStep) {
+        orderDeliveries.add(delivery);
+        checkpointLock.readLock().lock();
+        try {
+            persistStep.accept(delivery);
+        } catch (RuntimeException e) {
+            checkpointLock.readLock().unlock();
+            orderDeliveries.remove(delivery);
+            reservation.cancel();
+            throw e;
+        }
+        if (!TransactionSynchronizationManager.isSynchronizationActive()) {
+            try {
+                reservation.confirm(delivery);
+            } finally {
+                checkpointLock.readLock().unlock();
+            }
+            return delivery;
+        }
+        TransactionSynchronizationManager.registerSynchronization(
+                new TransactionSynchronization() {
+                    @Override
+                    public void afterCommit() {
+                        reservation.confirm(delivery);
+                    }
+
+                    @Override
+                    public void afterCompletion(int status) {
+                        checkpointLock.readLock().unlock();
+                        if (status != STATUS_COMMITTED) {
+                            orderDeliveries.remove(delivery);
+                        }
+                        reservation.cancel();
+                    }
+                });
+        return delivery;
+    }
+
+    /**
+     * this method records a committed delivery which was inserted without persistAndRecord, like
+     * one saved through the delivery repository directly. The deliveries of orders are skipped,
+     * as their reservations record them. Nothing is recorded before the state is loaded, since
+     * loading reads the delivery from the database.
+     *
+     * @param delivery
+     */
+    public void recordInserted(Delivery delivery) {
+        Driver driver = delivery.getDriver();
+        if (orderDeliveries.remove(delivery) || driver == null) {
+            return;
+        }
+        checkpointLock.readLock().lock();
+        try {
+            if (loaded) {
+                apply(delivery.getId(), driver.getId(),
+                        driver.getCity() == null ? null : driver.getCity().getId(),
+                        delivery.getDeliveryTime(), delivery.getDistanceMeters());
+            }
+        } finally {
+            checkpointLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * this method takes a delivery that was deleted or moved out of the state. The snapshot
+     * file, if any, is discarded: it may still hold the delivery, and a restart from it would not
+     * see the change, so the next start rebuilds from the deliveries unless a new checkpoint
+     * was written.
+     *
+     * @param driverId
+     * @param cityId
+     * @param deliveryTime
+     * @param distanceMeters
+     */
+    public void release(Long driverId, Long cityId, Date deliveryTime, int distanceMeters) {
+        checkpointLock.readLock().lock();
+        try {
+            DriverSchedule schedule = schedules.get(driverId);
+            if (schedule != null) {
+                schedule.remove(toSlot(deliveryTime), distanceMeters);
+            }
+            DistanceSketch citySketch = cityId == null ? null : citySketches.get(cityId);
+            if (citySketch != null) {
+                citySketch.remove(distanceMeters);
+            }
+            Path snapshot = getSnapshotPath();
+            if (snapshot != null) {
+                Files.deleteIfExists(snapshot);
+            }
+        } catch (IOException e) {
+            log.warn("Could not discard scheduling snapshot {}", snapshotFile, e);
+        } finally {
+            checkpointLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * this method takes out a journaled delivery which was recorded when it was accepted, but
+     * could never be saved
+     *
+     * @param delivery
+     */
+    private void releaseDeadLetter(Delivery delivery) {
+        Driver driver = delivery.getDriver();
+        Long cityId = driver.getCity() == null ? null : driver.getCity().getId();
+        release(driver.getId(), cityId, delivery.getDeliveryTime(),
+                delivery.getDistanceMeters());
+        if (cityId != null) {
+            noAvailableDriverCache.invalidateSlot(cityId, delivery.getDeliveryTime());
+        }
+    }
+
+    /**
+     * this method adds a delivery that was moved to another time or driver to the state
+     *
+     * @param driverId
+     * @param cityId
+     * @param deliveryTime
+     * @param distanceMeters
+     */
+    public void add(Long driverId, Long cityId, Date deliveryTime, int distanceMeters) {
+        checkpointLock.readLock().lock();
+        try {
+            apply(null, driverId, cityId, deliveryTime, distanceMeters);
+        } finally {
+            checkpointLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * this method forgets the busy slots which are past the retention horizon
+     */
+    @Scheduled(fixedDelayString = "${walt.scheduling.purge-interval-ms:3600000}",
+            initialDelayString = "${walt.scheduling.purge-interval-ms:3600000}")
+    public void prune() {
+        long oldestSlot = getOldestSlot();
+        for (DriverSchedule schedule : schedules.values()) {
+            schedule.prune(oldestSlot);
+        }
+    }
+
+    @Scheduled(fixedDelayString = "${walt.scheduling.snapshot-interval-ms:300000}",
+            initialDelayString = "${walt.scheduling.snapshot-interval-ms:300000}")
+    public void scheduledCheckpoint() {
+        checkpoint();
+    }
+
+    /**
+     * this method writes the current state to the snapshot file, if one is configured. Deliveries
+     * still waiting in the write-behind journal are saved first, so the high-water id covers
+     * everything the state holds.
+     */
+    @PreDestroy
+    public void checkpoint() {
+        Path snapshot = getSnapshotPath();
+        if (snapshot == null) {
+            return;
+        }
+        checkpointLock.writeLock().lock();
+        try {
+            deliveryWriteBehind.drain();
+            highWaterId.accumulateAndGet(deliveryWriteBehind.getLastPersistedId(), Math::max);
+            SchedulingSnapshot.write(snapshot, highWaterId.get(), schedules, citySketches);
+            log.debug("Scheduling snapshot written to {} at high-water id {}", snapshot,
+                    highWaterId.get());
+        } catch (IOException e) {
+            log.warn("Could not write scheduling snapshot {}", snapshot, e);
+        } finally {
+            checkpointLock.writeLock().unlock();
+        }
+    }
+
+    private void restore(SchedulingSnapshot snapshot) {
+        if (snapshot == null) {
+            return;
+        }
+        Long maxId = deliveryRepository.findMaxId();
+        if (maxId == null || maxId < snapshot.getHighWaterId()) {
+            log.warn("Scheduling snapshot is ahead of the database (high-water id {}, max id {})," +
+                    " ignoring it", snapshot.getHighWaterId(), maxId);
+            return;
+        }
+        schedules.clear();
+        schedules.putAll(snapshot.getSchedules());
+        citySketches.clear();
+        citySketches.putAll(snapshot.getCitySketches());
+        highWaterId.set(snapshot.getHighWaterId());
+    }
+
+    /**
+     * this method reads all the deliveries written after the high-water id, page by page so the
+     * full history is never held in memory at once.
+     *
+     * @return the number of deliveries read
+     */
+    private int catchUp() {
+        int count = 0;
+        List<DeliverySlot> page;
+        do {
+            page = deliveryRepository.findDeliverySlotsAfter(highWaterId.get(),
+                    PageRequest.of(0, CATCH_UP_PAGE_SIZE));
+            for (DeliverySlot slot : page) {
+                apply(slot.getId(), slot.getDriverId(), slot.getCityId(),
+                        slot.getDeliveryTime(), slot.getDistanceMeters());
+            }
+            count += page.size();
+        } while (page.size() == CATCH_UP_PAGE_SIZE);
+        return count;
+    }
+
+    /**
+     * the slot of a driver held for an order, until its delivery is recorded or the order fails
+     */
+    public class Reservation {
+
+        private final Driver driver;
+        private final long slot;
+        private final AtomicBoolean done = new AtomicBoolean();
+
+        private Reservation(Driver driver, long slot) {
+            this.driver = driver;
+            this.slot = slot;
+        }
+
+        public Driver getDriver() {
+            return driver;
+        }
+
+        /**
+         * this method gives the slot back, unless the reservation was already confirmed or
+         * cancelled. An order may have found the slot fully booked while it was reserved, so
+         * the slot is invalidated in the no available driver cache.
+         */
+        public void cancel() {
+            if (done.compareAndSet(false, true)) {
+                unreserve();
+                if (driver.getCity() != null) {
+                    noAvailableDriverCache.invalidateSlot(driver.getCity().getId(),
+                            slotStart(slot));
+                }
+            }
+        }
+
+        private void confirm(Delivery delivery) {
+            if (done.compareAndSet(false, true)) {
+                apply(delivery.getId(), driver.getId(),
+                        driver.getCity() == null ? null : driver.getCity().getId(),
+                        delivery.getDeliveryTime(), delivery.getDistanceMeters());
+                unreserve();
+            }
+        }
+
+        private void unreserve() {
+            DriverSchedule schedule = schedules.get(driver.getId());
+            if (schedule != null) {
+                schedule.unreserve(slot);
+            }
+        }
+    }
+
+    private void apply(Long deliveryId, Long driverId, Long cityId, Date deliveryTime,
+                       int distanceMeters) {
+        schedules.computeIfAbsent(driverId, id -> new DriverSchedule())
+                .add(toSlot(deliveryTime), distanceMeters, getOldestSlot());
+        if (cityId != null) {
+            citySketches.computeIfAbsent(cityId, id -> new DistanceSketch()).add(distanceMeters);
+        }
+        if (deliveryId != null) {
+            highWaterId.accumulateAndGet(deliveryId, Math::max);
+        }
+    }
+
+    /**
+     * @return the first hour slot within the retention horizon
+     */
+    private long getOldestSlot() {
+        return toSlot(new Date()) - TimeUnit.HOURS.toMillis(retentionHours) / SLOT_MILLIS;
+    }
+
+    /**
+     * @return the snapshot file, or null if snapshots are off or driver slot leases are enabled
+     */
+    private Path getSnapshotPath() {
+        if (leasesEnabled || snapshotFile == null || snapshotFile.isEmpty()) {
+            return null;
+        }
+        return Paths.get(snapshotFile);
+    }
+}
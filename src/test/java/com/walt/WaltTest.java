@@ -1,25 +1,51 @@
 package com.walt;
 
 import com.walt.dao.*;
+import com.walt.intake.CustomerResolver;
 import com.walt.model.*;
+import com.walt.profiling.FlightRecordingEndpoint;
+import com.walt.scheduling.NoAvailableDriverCache;
+import com.walt.scheduling.SchedulingState;
 import org.assertj.core.util.Lists;
+import org.hibernate.SessionFactory;
+import org.hibernate.stat.Statistics;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.test.context.SpringBootTest;
 import org.springframework.boot.test.context.TestConfiguration;
 import org.springframework.context.annotation.Bean;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.orm.jpa.EntityManagerFactoryUtils;
 import org.springframework.test.annotation.DirtiesContext;
+import org.springframework.test.util.ReflectionTestUtils;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
 
 import javax.annotation.Resource;
+import javax.persistence.EntityManagerFactory;
 
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
 
 import static org.junit.Assert.*;
 
-@SpringBootTest()
+@SpringBootTest(properties =
+        "walt.scheduling.snapshot-file=${java.io.tmpdir}/walt-test-scheduling.snapshot")
 @DirtiesContext(classMode = DirtiesContext.ClassMode.BEFORE_EACH_TEST_METHOD)
 public class WaltTest {
 
@@ -50,6 +76,30 @@ public class WaltTest {
     @Resource
     RestaurantRepository restaurantRepository;
 
+    @Autowired
+    SchedulingState schedulingState;
+
+    @Autowired
+    NoAvailableDriverCache noAvailableDriverCache;
+
+    @Autowired
+    FlightRecordingEndpoint flightRecordingEndpoint;
+
+    @Autowired
+    DistanceMetersMigration distanceMetersMigration;
+
+    @Autowired
+    JdbcTemplate jdbcTemplate;
+
+    @Autowired
+    EntityManagerFactory entityManagerFactory;
+
+    @Autowired
+    PlatformTransactionManager transactionManager;
+
+    @Autowired
+    CustomerResolver customerResolver;
+
     @BeforeEach()
     public void prepareData() {
 
@@ -371,4 +421,464 @@ public class WaltTest {
         assertTrue(actualMessage3.contains(expectedMessage));
     }
 
+    @Test
+    public void testSchedulingStateRestoredFromSnapshot() throws Exception {
+        Customer testCustomer1 = customerRepository.findByName("Moshe");
+        Customer testCustomer2 = customerRepository.findByName("Itamar");
+
+        Restaurant restaurant = restaurantRepository.findByName("mozes");
+        Date date = new Date();
+        Date date2 = new Date(date.getTime() + TimeUnit.HOURS.toMillis(1));
+
+        Path snapshot = Files.createTempFile("walt-scheduling", ".snapshot");
+        ReflectionTestUtils.setField(schedulingState, "snapshotFile", snapshot.toString());
+        try {
+            Delivery delivery1 = waltService.createOrderAndAssignDriver(testCustomer1, restaurant,
+                    date);
+            Delivery delivery2 = waltService.createOrderAndAssignDriver(testCustomer2, restaurant,
+                    date);
+            schedulingState.checkpoint();
+
+            // written after the snapshot, must be caught up from the database
+            Delivery delivery3 = waltService.createOrderAndAssignDriver(testCustomer1, restaurant,
+                    date2);
+            schedulingState.load();
+
+            assertFalse(schedulingState.isAvailable(delivery1.getDriver(), date));
+            assertFalse(schedulingState.isAvailable(delivery2.getDriver(), date));
+            assertFalse(schedulingState.isAvailable(delivery3.getDriver(), date2));
+
+            long expectedDistance = delivery1.getDistanceMeters();
+            if (delivery3.getDriver().getId().equals(delivery1.getDriver().getId())) {
+                expectedDistance += delivery3.getDistanceMeters();
+            }
+            assertEquals(expectedDistance,
+                    schedulingState.getTotalDistanceMeters(delivery1.getDriver()));
+        } finally {
+            ReflectionTestUtils.setField(schedulingState, "snapshotFile", "");
+            Files.deleteIfExists(snapshot);
+        }
+    }
+
+    @Test
+    public void testSchedulingStateSlotCountsAndRetention() {
+        Driver mary = driverRepository.findByName("Mary");
+        Customer bach = customerRepository.findByName("Bach");
+        Restaurant cafe = restaurantRepository.findByName("cafe");
+        Date date = new Date();
+        Date lastWeek = new Date(date.getTime() - TimeUnit.DAYS.toMillis(7));
+
+        // two deliveries of the same driver in one slot, saved without an order
+        Delivery delivery1 = deliveryRepository.save(new Delivery(mary, cafe, bach, date));
+        assertFalse(schedulingState.isAvailable(mary, date));
+        Delivery delivery2 = deliveryRepository.save(new Delivery(mary, cafe, bach, date));
+        Delivery delivery3 = deliveryRepository.save(new Delivery(mary, cafe, bach, lastWeek));
+        assertEquals(delivery1.getDistanceMeters() + delivery2.getDistanceMeters() +
+                delivery3.getDistanceMeters(), schedulingState.getTotalDistanceMeters(mary));
+
+        // cancelling one of them leaves the slot taken by the other
+        deliveryRepository.delete(delivery1);
+        assertFalse(schedulingState.isAvailable(mary, date));
+
+        // a slot past the retention horizon is not kept in memory, it is read from the database
+        assertFalse(schedulingState.isAvailable(mary, lastWeek));
+        assertTrue(schedulingState.isAvailable(mary,
+                new Date(lastWeek.getTime() + TimeUnit.HOURS.toMillis(1))));
+    }
+
+    @Test
+    public void testCapacityForecast() {
+        Customer testCustomer1 = customerRepository.findByName("Moshe");
+        Customer testCustomer2 = customerRepository.findByName("Itamar");
+
+        Restaurant restaurant = restaurantRepository.findByName("mozes");
+        Date date = new Date();
+
+        waltService.createOrderAndAssignDriver(testCustomer1, restaurant, date);
+        waltService.createOrderAndAssignDriver(testCustomer2, restaurant, date);
+        waltService.createOrderAndAssignDriver(testCustomer1, restaurant,
+                new Date(date.getTime() + TimeUnit.HOURS.toMillis(2)));
+
+        CapacityForecast forecast = waltService.getCapacityForecast(date, 24);
+
+        City bash = cityRepository.findByName("Beer-Sheva");
+        City jerusalem = cityRepository.findByName("Jerusalem");
+        assertEquals(4, forecast.getCities().size());
+        assertEquals(24, forecast.getFreeDrivers(bash).length);
+        assertEquals(0, forecast.getFreeDrivers(bash, 0));
+        assertEquals(2, forecast.getFreeDrivers(bash, 1));
+        assertEquals(1, forecast.getFreeDrivers(bash, 2));
+        assertEquals(3, forecast.getFreeDrivers(jerusalem, 0));
+    }
+
+    @Test
+    public void testDriverRankReportByAllCities() {
+        Customer testCustomer1 = customerRepository.findByName("Moshe");
+        Customer testCustomer2 = customerRepository.findByName("Itamar");
+        Customer testCustomer3 = customerRepository.findByName("Mozart");
+
+        Restaurant restaurant = restaurantRepository.findByName("mozes");
+        Restaurant restaurant2 = restaurantRepository.findByName("meat");
+        Date date = new Date();
+
+        waltService.createOrderAndAssignDriver(testCustomer1, restaurant, date);
+        waltService.createOrderAndAssignDriver(testCustomer2, restaurant, date);
+        waltService.createOrderAndAssignDriver(testCustomer3, restaurant2, date);
+
+        Map<City, List<DriverDistance>> report = waltService.getDriverRankReportByAllCities();
+
+        assertEquals(4, report.size());
+        for (City city : cityRepository.findAll()) {
+            List<DriverDistance> expected = waltService.getDriverRankReportByCity(city);
+            List<DriverDistance> actual = report.get(city);
+            assertEquals(expected.size(), actual.size());
+            for (int i = 0; i < expected.size(); i++) {
+                assertEquals(expected.get(i).getDriver().getId(),
+                        actual.get(i).getDriver().getId());
+                assertEquals(expected.get(i).getTotalDistanceMeters(),
+                        actual.get(i).getTotalDistanceMeters());
+            }
+        }
+        assertEquals(2, report.get(cityRepository.findByName("Beer-Sheva")).size());
+        assertTrue(report.get(cityRepository.findByName("Haifa")).isEmpty());
+    }
+
+    @Test
+    public void testNoAvailableDriverCache() {
+        Customer testCustomer1 = customerRepository.findByName("Moshe");
+
+        Restaurant restaurant = restaurantRepository.findByName("mozes");
+        City bash = cityRepository.findByName("Beer-Sheva");
+        Date date = new Date();
+
+        Delivery delivery1 = waltService.createOrderAndAssignDriver(testCustomer1, restaurant,
+                date);
+        waltService.createOrderAndAssignDriver(testCustomer1, restaurant, date);
+
+        assertThrows(RuntimeException.class, () ->
+                waltService.createOrderAndAssignDriver(testCustomer1, restaurant, date));
+        assertEquals(0, noAvailableDriverCache.getHits());
+        assertThrows(RuntimeException.class, () ->
+                waltService.createOrderAndAssignDriver(testCustomer1, restaurant, date));
+        assertEquals(1, noAvailableDriverCache.getHits());
+        assertEquals(2, noAvailableDriverCache.getSavedDriverChecks());
+
+        // a new driver in the city makes the slot available again
+        Driver newDriver = driverRepository.save(new Driver("Avi", bash));
+        Delivery delivery3 = waltService.createOrderAndAssignDriver(testCustomer1, restaurant,
+                date);
+        assertEquals(newDriver.getId(), delivery3.getDriver().getId());
+        assertThrows(RuntimeException.class, () ->
+                waltService.createOrderAndAssignDriver(testCustomer1, restaurant, date));
+
+        // so does a cancelled delivery
+        deliveryRepository.delete(delivery1);
+        Delivery delivery4 = waltService.createOrderAndAssignDriver(testCustomer1, restaurant,
+                date);
+        assertEquals(delivery1.getDriver().getId(), delivery4.getDriver().getId());
+        assertEquals(1, noAvailableDriverCache.getHits());
+    }
+
+    @Test
+    public void testRolledBackCancellationKeepsTheSlot() {
+        Customer testCustomer1 = customerRepository.findByName("Moshe");
+
+        Restaurant restaurant = restaurantRepository.findByName("mozes");
+        Date date = new Date();
+
+        Delivery delivery1 = waltService.createOrderAndAssignDriver(testCustomer1, restaurant,
+                date);
+        waltService.createOrderAndAssignDriver(testCustomer1, restaurant, date);
+        assertThrows(RuntimeException.class, () ->
+                waltService.createOrderAndAssignDriver(testCustomer1, restaurant, date));
+
+        // the delete is flushed, so the listener sees it, but the transaction rolls back
+        new TransactionTemplate(transactionManager).execute(status -> {
+            deliveryRepository.delete(delivery1);
+            EntityManagerFactoryUtils.getTransactionalEntityManager(entityManagerFactory).flush();
+            status.setRollbackOnly();
+            return null;
+        });
+
+        assertTrue(deliveryRepository.existsById(delivery1.getId()));
+        assertFalse(schedulingState.isAvailable(delivery1.getDriver(), date));
+        assertThrows(RuntimeException.class, () ->
+                waltService.createOrderAndAssignDriver(testCustomer1, restaurant, date));
+        assertEquals(1, noAvailableDriverCache.getHits());
+    }
+
+    @Test
+    public void testDeliveryIsRecordedOnlyOnceCommitted() {
+        Customer testCustomer1 = customerRepository.findByName("Moshe");
+
+        Restaurant restaurant = restaurantRepository.findByName("mozes");
+        Driver driver = driverRepository.findByName("James");
+        Date date = new Date();
+        long distance = schedulingState.getTotalDistanceMeters(driver);
+
+        // the reserved slot is taken while the delivery is not committed yet
+        SchedulingState.Reservation reservation = schedulingState.tryReserve(driver, date);
+        assertNotNull(reservation);
+        assertNull(schedulingState.tryReserve(driver, date));
+        assertFalse(schedulingState.isAvailable(driver, date));
+
+        // a rolled back delivery is never recorded and gives its slot back
+        new TransactionTemplate(transactionManager).execute(status -> {
+            schedulingState.persistAndRecord(reservation,
+                    new Delivery(driver, restaurant, testCustomer1, date),
+                    deliveryRepository::save);
+            assertEquals(distance, schedulingState.getTotalDistanceMeters(driver));
+            status.setRollbackOnly();
+            return null;
+        });
+        assertTrue(schedulingState.isAvailable(driver, date));
+        assertEquals(distance, schedulingState.getTotalDistanceMeters(driver));
+
+        // a committed delivery is recorded once its transaction commits
+        SchedulingState.Reservation committed = schedulingState.tryReserve(driver, date);
+        Delivery delivery = new TransactionTemplate(transactionManager).execute(status -> {
+            Delivery saved = schedulingState.persistAndRecord(committed,
+                    new Delivery(driver, restaurant, testCustomer1, date),
+                    deliveryRepository::save);
+            assertEquals(distance, schedulingState.getTotalDistanceMeters(driver));
+            return saved;
+        });
+        assertFalse(schedulingState.isAvailable(driver, date));
+        assertEquals(distance + delivery.getDistanceMeters(),
+                schedulingState.getTotalDistanceMeters(driver));
+        committed.cancel();
+        assertFalse(schedulingState.isAvailable(driver, date));
+    }
+
+    @Test
+    public void testCancelledReservationFreesACachedFullSlot() {
+        Customer testCustomer1 = customerRepository.findByName("Moshe");
+
+        Restaurant restaurant = restaurantRepository.findByName("mozes");
+        Date date = new Date();
+
+        // both drivers of Beer-Sheva are reserved by orders which are not committed yet
+        SchedulingState.Reservation james = schedulingState.tryReserve(
+                driverRepository.findByName("James"), date);
+        SchedulingState.Reservation john = schedulingState.tryReserve(
+                driverRepository.findByName("John"), date);
+        assertThrows(RuntimeException.class, () ->
+                waltService.createOrderAndAssignDriver(testCustomer1, restaurant, date));
+        assertTrue(noAvailableDriverCache.isFullyBooked(restaurant.getCity().getId(), date));
+
+        // one of them fails, its driver takes the next order
+        john.cancel();
+        assertFalse(noAvailableDriverCache.isFullyBooked(restaurant.getCity().getId(), date));
+        Delivery delivery = waltService.createOrderAndAssignDriver(testCustomer1, restaurant,
+                date);
+        assertEquals("John", delivery.getDriver().getName());
+        james.cancel();
+    }
+
+    @Test
+    public void testFlightRecordingOfOrderStages() throws Exception {
+        Customer testCustomer1 = customerRepository.findByName("Moshe");
+
+        Restaurant restaurant = restaurantRepository.findByName("mozes");
+        Date date = new Date();
+
+        flightRecordingEndpoint.start(null, null);
+        try {
+            waltService.createOrderAndAssignDriver(testCustomer1, restaurant, date);
+            waltService.getDriverRankReport();
+
+            org.springframework.core.io.Resource dump = flightRecordingEndpoint.dump();
+            Map<String, Long> stages = new HashMap<>();
+            Set<String> reports = new HashSet<>();
+            for (RecordedEvent event : RecordingFile.readAllEvents(dump.getFile().toPath())) {
+                if (event.getEventType().getName().equals("com.walt.OrderStage")) {
+                    stages.put(event.getString("stage"), event.getLong("rowsReturned"));
+                    assertEquals("Beer-Sheva", event.getString("city"));
+                } else if (event.getEventType().getName().equals("com.walt.Report")) {
+                    reports.add(event.getString("report"));
+                }
+            }
+            // streaming the dump deletes its temporary file
+            dump.getInputStream().close();
+            assertFalse(Files.exists(dump.getFile().toPath()));
+
+            // the two drivers of Beer-Sheva are read, their availability is answered in memory
+            assertEquals(Long.valueOf(2), stages.get("driverLookup"));
+            assertEquals(Long.valueOf(0), stages.get("availabilityScan"));
+            assertTrue(stages.containsKey("driverRanking"));
+            assertTrue(stages.containsKey("deliverySave"));
+            assertTrue(reports.contains("driverRankReport"));
+        } finally {
+            flightRecordingEndpoint.discard();
+        }
+    }
+
+    @Test
+    public void testDistanceDistribution() {
+        Customer testCustomer1 = customerRepository.findByName("Moshe");
+        Customer testCustomer2 = customerRepository.findByName("Mozart");
+
+        Restaurant restaurant = restaurantRepository.findByName("mozes");
+        Restaurant restaurant2 = restaurantRepository.findByName("meat");
+        City bash = cityRepository.findByName("Beer-Sheva");
+        Date date = new Date();
+
+        Delivery delivery1 = waltService.createOrderAndAssignDriver(testCustomer1, restaurant,
+                date);
+        Delivery delivery2 = waltService.createOrderAndAssignDriver(testCustomer1, restaurant,
+                date);
+        waltService.createOrderAndAssignDriver(testCustomer2, restaurant2, date);
+
+        assertEquals(3, waltService.getDistanceDistribution().getDeliveries());
+        DistanceDistribution bashDistribution = waltService.getDistanceDistributionByCity(bash);
+        assertEquals(2, bashDistribution.getDeliveries());
+        assertEquals(Math.min(delivery1.getDistance(), delivery2.getDistance()),
+                bashDistribution.getMedian(), 0.1);
+        assertEquals(Math.max(delivery1.getDistance(), delivery2.getDistance()),
+                bashDistribution.getPercentile(100), 0.1);
+        assertEquals(0, waltService.getDistanceDistributionByCity(
+                cityRepository.findByName("Haifa")).getDeliveries());
+
+        List<DistanceDistribution> report = waltService.getDriverPercentileRankReport(bash, 95);
+        assertEquals(2, report.size());
+        assertTrue(report.get(0).getPercentile(95) >= report.get(1).getPercentile(95));
+        assertEquals(Math.max(delivery1.getDistance(), delivery2.getDistance()),
+                report.get(0).getPercentile(95), 0.1);
+        assertEquals(11, waltService.getDriverPercentileRankReport(null, 50).size());
+
+        assertThrows(RuntimeException.class, () ->
+                waltService.getDriverPercentileRankReport(bash, 101));
+    }
+
+    @Test
+    public void testDistanceMetersMigration() throws Exception {
+        Customer testCustomer1 = customerRepository.findByName("Moshe");
+
+        Restaurant restaurant = restaurantRepository.findByName("mozes");
+        Date date = new Date();
+
+        Delivery delivery1 = waltService.createOrderAndAssignDriver(testCustomer1, restaurant,
+                date);
+        Delivery delivery2 = waltService.createOrderAndAssignDriver(testCustomer1, restaurant,
+                date);
+
+        // a delivery table from before distances were stored in meters
+        jdbcTemplate.execute("ALTER TABLE delivery ADD COLUMN distance DOUBLE");
+        jdbcTemplate.update("UPDATE delivery SET distance = 2.5 WHERE id = ?", delivery1.getId());
+        jdbcTemplate.update("UPDATE delivery SET distance = 7.25 WHERE id = ?",
+                delivery2.getId());
+
+        distanceMetersMigration.migrate();
+
+        assertEquals(2500, deliveryRepository.findById(delivery1.getId()).get()
+                .getDistanceMeters());
+        assertEquals(7250, deliveryRepository.findById(delivery2.getId()).get()
+                .getDistanceMeters());
+        assertThrows(Exception.class, () ->
+                jdbcTemplate.queryForList("SELECT distance FROM delivery"));
+        List<DriverDistance> report = waltService.getDriverRankReport();
+        assertEquals(Long.valueOf(7250), report.get(0).getTotalDistanceMeters());
+        assertEquals(7.25, report.get(0).getTotalDistance(), 0);
+
+        // nothing left to migrate
+        distanceMetersMigration.migrate();
+    }
+
+    @Test
+    public void testOrderRunsInOneTransaction() {
+        Customer testCustomer1 = customerRepository.findByName("Moshe");
+        Customer testCustomer2 = customerRepository.findByName("Itamar");
+
+        Restaurant restaurant = restaurantRepository.findByName("mozes");
+        Date date = new Date();
+
+        Statistics statistics = entityManagerFactory.unwrap(SessionFactory.class).getStatistics();
+        statistics.setStatisticsEnabled(true);
+        try {
+            statistics.clear();
+            waltService.createOrderAndAssignDriver(testCustomer1, restaurant, date);
+            System.out.printf("One order: %d transactions, %d sessions, %d connections, " +
+                            "%d statements%n", statistics.getTransactionCount(),
+                    statistics.getSessionOpenCount(), statistics.getConnectCount(),
+                    statistics.getPrepareStatementCount());
+            assertEquals(1, statistics.getTransactionCount());
+            assertEquals(1, statistics.getSessionOpenCount());
+            assertEquals(1, statistics.getConnectCount());
+
+            // the cache answers a fully booked slot without a transaction
+            waltService.createOrderAndAssignDriver(testCustomer2, restaurant, date);
+            assertThrows(RuntimeException.class, () ->
+                    waltService.createOrderAndAssignDriver(testCustomer1, restaurant, date));
+            statistics.clear();
+            assertThrows(RuntimeException.class, () ->
+                    waltService.createOrderAndAssignDriver(testCustomer1, restaurant, date));
+            assertEquals(0, statistics.getTransactionCount());
+            assertEquals(0, statistics.getConnectCount());
+
+            statistics.clear();
+            waltService.getDriverRankReport();
+            assertEquals(1, statistics.getTransactionCount());
+            assertEquals(0, statistics.getFlushCount());
+        } finally {
+            statistics.setStatisticsEnabled(false);
+        }
+    }
+
+    @Test
+    public void testOrderOfNewCustomer() throws Exception {
+        Restaurant restaurant = restaurantRepository.findByName("mozes");
+        City bash = cityRepository.findByName("Beer-Sheva");
+        Date date = new Date();
+        long customers = customerRepository.count();
+
+        Delivery delivery1 = waltService.createOrderAndAssignDriver("Liszt", bash,
+                "Franz Liszt", restaurant, date);
+        Delivery delivery2 = waltService.createOrderAndAssignDriver("Liszt", bash,
+                "Franz Liszt", restaurant, date);
+        assertEquals(customers + 1, customerRepository.count());
+        assertEquals(delivery1.getCustomer().getId(), delivery2.getCustomer().getId());
+        assertEquals(1, customerResolver.getHits());
+
+        // an existing customer is found, not created again
+        Delivery delivery3 = waltService.createOrderAndAssignDriver("Moshe", bash,
+                "Moshe's address", restaurant, new Date(date.getTime() +
+                        TimeUnit.HOURS.toMillis(1)));
+        assertEquals(customerRepository.findByName("Moshe").getId(),
+                delivery3.getCustomer().getId());
+        assertEquals(customers + 1, customerRepository.count());
+
+        // a rejected order creates no customer
+        assertThrows(RuntimeException.class, () -> waltService.createOrderAndAssignDriver(
+                "Schubert", cityRepository.findByName("Haifa"), "Franz Schubert", restaurant,
+                date));
+        assertEquals(customers + 1, customerRepository.count());
+
+        // a customer without an address cannot be told apart, it is not created
+        RuntimeException noAddress = assertThrows(RuntimeException.class, () ->
+                waltService.createOrderAndAssignDriver("Schubert", bash, null, restaurant,
+                        date));
+        assertEquals("ERROR : An invalid input was provided to this method",
+                noAddress.getMessage());
+        assertEquals(customers + 1, customerRepository.count());
+
+        // concurrent first orders of the same customers create each of them once
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            List<Future<Customer>> futures = new ArrayList<>();
+            for (int i = 0; i < 64; i++) {
+                String name = "Customer" + (i % 4);
+                futures.add(executor.submit(() -> customerResolver.resolve(name, bash,
+                        name + "'s address")));
+            }
+            Set<Long> ids = new HashSet<>();
+            for (Future<Customer> future : futures) {
+                ids.add(future.get().getId());
+            }
+            assertEquals(4, ids.size());
+        } finally {
+            executor.shutdown();
+        }
+        assertEquals(customers + 5, customerRepository.count());
+        assertEquals(5, customerResolver.getCreated());
+    }
 }
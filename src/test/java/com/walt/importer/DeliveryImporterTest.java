@@ -0,0 +1,211 @@
+package com.walt.importer;
+
+import com.walt.WaltService;
+import com.walt.dao.*;
+import com.walt.model.*;
+import com.walt.scheduling.SchedulingState;
+import org.assertj.core.util.Lists;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.test.annotation.DirtiesContext;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import javax.annotation.Resource;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+@SpringBootTest(properties =
+        "walt.scheduling.snapshot-file=${java.io.tmpdir}/walt-test-scheduling.snapshot")
+@DirtiesContext(classMode = DirtiesContext.ClassMode.BEFORE_EACH_TEST_METHOD)
+public class DeliveryImporterTest {
+
+    private static final int CSV_ROWS = 20000;
+
+    @Autowired
+    WaltService waltService;
+
+    @Autowired
+    DeliveryImporter deliveryImporter;
+
+    @Autowired
+    SchedulingState schedulingState;
+
+    @Resource
+    CityRepository cityRepository;
+
+    @Resource
+    CustomerRepository customerRepository;
+
+    @Resource
+    DriverRepository driverRepository;
+
+    @Resource
+    DeliveryRepository deliveryRepository;
+
+    @Resource
+    RestaurantRepository restaurantRepository;
+
+    @BeforeEach()
+    public void prepareData() {
+        City tlv = new City("Tel-Aviv");
+        cityRepository.save(tlv);
+        driverRepository.saveAll(Lists.newArrayList(new Driver("Mary", tlv),
+                new Driver("Patricia", tlv)));
+        customerRepository.save(new Customer("Bach", tlv, "Sebastian Bach. Johann"));
+        restaurantRepository.save(new Restaurant("cafe", tlv, "Coffee shop"));
+    }
+
+    @Test
+    public void testImportCsv() throws Exception {
+        long start = SchedulingState.slotStart(SchedulingState.toSlot(new Date())).getTime();
+        Path file = Files.createTempFile("walt-import", ".csv");
+        try {
+            try (BufferedWriter writer = Files.newBufferedWriter(file, StandardCharsets.UTF_8)) {
+                writer.write("deliveryTime,driver,restaurant,customer,distanceMeters\n");
+                for (int i = 0; i < CSV_ROWS; i++) {
+                    String driver = i % 2 == 0 ? "Mary" : "\"Patricia\"";
+                    long time = start + TimeUnit.HOURS.toMillis(i / 2);
+                    writer.write(time + "," + driver + ",cafe,Bach," + (i % 2 == 0 ? 1000 : 2000));
+                    writer.write('\n');
+                }
+                writer.write(start + ",Nobody,cafe,Bach,1000\n");
+                writer.write("not a time,Mary,cafe,Bach,1000\n");
+            }
+
+            DeliveryImportResult result = deliveryImporter.importDeliveries(file);
+            System.out.printf("Imported %d deliveries in %d ms (%.0f rows/s)%n",
+                    result.getImported(), result.getElapsedMillis(), result.getRowsPerSecond());
+
+            assertEquals(CSV_ROWS, result.getImported());
+            assertEquals(2, result.getSkipped());
+            assertEquals(CSV_ROWS, deliveryRepository.count());
+
+            List<DriverDistance> report = waltService.getDriverRankReport();
+            assertEquals("Patricia", report.get(0).getDriver().getName());
+            assertEquals(Long.valueOf(2000L * CSV_ROWS / 2),
+                    report.get(0).getTotalDistanceMeters());
+            assertEquals(Long.valueOf(1000L * CSV_ROWS / 2),
+                    report.get(1).getTotalDistanceMeters());
+
+            // the scheduling state was rebuilt, so the imported slots are taken
+            Driver mary = driverRepository.findByName("Mary");
+            assertFalse(schedulingState.isAvailable(mary, new Date(start)));
+            assertEquals(1000L * CSV_ROWS / 2, schedulingState.getTotalDistanceMeters(mary));
+            assertThrows(RuntimeException.class, () -> waltService.createOrderAndAssignDriver(
+                    customerRepository.findByName("Bach"), restaurantRepository.findByName("cafe"),
+                    new Date(start)));
+        } finally {
+            Files.deleteIfExists(file);
+        }
+    }
+
+    @Test
+    public void testFailedImportRebuildsState() throws Exception {
+        long start = SchedulingState.slotStart(SchedulingState.toSlot(new Date())).getTime();
+        Path file = Files.createTempFile("walt-import", ".csv");
+        ReflectionTestUtils.setField(deliveryImporter, "batchSize", 100);
+        try {
+            try (OutputStream out = Files.newOutputStream(file)) {
+                StringBuilder rows = new StringBuilder(
+                        "deliveryTime,driver,restaurant,customer,distanceMeters\n");
+                for (int i = 0; i < 2000; i++) {
+                    String driver = i % 2 == 0 ? "Mary" : "Patricia";
+                    long time = start + TimeUnit.HOURS.toMillis(i / 2);
+                    rows.append(time).append(',').append(driver).append(",cafe,Bach,1000\n");
+                }
+                out.write(rows.toString().getBytes(StandardCharsets.UTF_8));
+                // the file is cut off in the middle of a character
+                out.write(new byte[]{(byte) 0xE2, (byte) 0x82});
+            }
+
+            assertThrows(IOException.class, () -> deliveryImporter.importDeliveries(file));
+
+            // the batches inserted before the failure stay, and the state knows about them
+            long imported = deliveryRepository.count();
+            assertTrue(imported > 0);
+            Driver mary = driverRepository.findByName("Mary");
+            assertFalse(schedulingState.isAvailable(mary, new Date(start)));
+            assertEquals(1000L * imported / 2, schedulingState.getTotalDistanceMeters(mary));
+        } finally {
+            Files.deleteIfExists(file);
+        }
+    }
+
+    @Test
+    public void testImportNdjson() throws Exception {
+        Path file = Files.createTempFile("walt-import", ".ndjson");
+        try {
+            Files.write(file, Arrays.asList(
+                    "{\"driver\":\"Mary\",\"restaurant\":\"cafe\",\"customer\":\"Bach\"," +
+                            "\"deliveryTime\":\"2020-11-01T12:00:00Z\",\"distanceMeters\":3200}",
+                    "",
+                    "{\"driver\":\"Mary\",\"restaurant\":\"cafe\",\"customer\":\"Bach\"," +
+                            "\"deliveryTime\":\"2020-11-01T13:00:00Z\",\"distanceMeters\":800}",
+                    "{\"driver\":\"Mary\",\"restaurant\":\"cafe\"}",
+                    "{not json"), StandardCharsets.UTF_8);
+
+            DeliveryImportResult result = deliveryImporter.importDeliveries(file);
+
+            assertEquals(2, result.getImported());
+            assertEquals(2, result.getSkipped());
+            assertEquals(4000, schedulingState.getTotalDistanceMeters(
+                    driverRepository.findByName("Mary")));
+        } finally {
+            Files.deleteIfExists(file);
+        }
+    }
+
+    @Test
+    public void testImportResolvesNamesByCity() throws Exception {
+        City tlv = cityRepository.findByName("Tel-Aviv");
+        City jerusalem = cityRepository.save(new City("Jerusalem"));
+        Driver jerusalemMary = driverRepository.save(new Driver("Mary", jerusalem));
+        restaurantRepository.save(new Restaurant("cafe", jerusalem, "Coffee shop"));
+        customerRepository.save(new Customer("Mozart", jerusalem, "Wolfgang Amadeus Mozart"));
+        customerRepository.save(new Customer("Liszt", tlv, "Franz Liszt"));
+        customerRepository.save(new Customer("Bach", tlv, "Carl Philipp Emanuel Bach"));
+        Driver tlvMary = driverRepository.findAllDriversByCity(tlv).stream()
+                .filter(driver -> driver.getName().equals("Mary")).findFirst().get();
+
+        Path file = Files.createTempFile("walt-import", ".csv");
+        try {
+            Files.write(file, Arrays.asList(
+                    "driver,restaurant,customer,deliveryTime,distanceMeters",
+                    "Mary,cafe,Mozart,2020-11-01T12:00:00Z,1000",
+                    "Mary,cafe,Liszt,2020-11-01T12:00:00Z,2000",
+                    "Patricia,cafe,Mozart,2020-11-01T12:00:00Z,3000",
+                    "Mary,cafe,Bach,2020-11-01T13:00:00Z,4000",
+                    "Patricia,cafe,Bach,2020-11-01T13:00:00Z,5000"), StandardCharsets.UTF_8);
+
+            DeliveryImportResult result = deliveryImporter.importDeliveries(file);
+
+            // Mozart is in Jerusalem only, Liszt in Tel-Aviv only, and Tel-Aviv has two Bachs
+            assertEquals(2, result.getImported());
+            assertEquals(3, result.getSkipped());
+            assertEquals(2, result.getAmbiguous());
+            assertEquals(1000, schedulingState.getTotalDistanceMeters(jerusalemMary));
+            assertEquals(2000, schedulingState.getTotalDistanceMeters(tlvMary));
+        } finally {
+            Files.deleteIfExists(file);
+        }
+    }
+
+    @Test
+    public void testSplitCsv() {
+        assertArrayEquals(new String[]{"a", "b, c", "say \"hi\"", ""},
+                DeliveryImporter.splitCsv("a,\"b, c\",\"say \"\"hi\"\"\","));
+    }
+}
@@ -0,0 +1,200 @@
+package com.walt.intake;
+
+import com.walt.WaltService;
+import com.walt.dao.*;
+import com.walt.model.*;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.test.annotation.DirtiesContext;
+
+import javax.annotation.Resource;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+@SpringBootTest(properties = {
+        "walt.admission.enabled=true",
+        "walt.admission.initial-limit=2",
+        "walt.admission.min-limit=1",
+        "walt.admission.max-limit=4",
+        "walt.admission.target-latency-ms=60000",
+        "walt.scheduling.snapshot-file=${java.io.tmpdir}/walt-test-scheduling.snapshot"})
+@DirtiesContext(classMode = DirtiesContext.ClassMode.BEFORE_EACH_TEST_METHOD)
+public class AdmissionControllerTest {
+
+    @Autowired
+    WaltService waltService;
+
+    @Autowired
+    AdmissionController admissionController;
+
+    @Autowired
+    MeterRegistry meterRegistry;
+
+    @Resource
+    CityRepository cityRepository;
+
+    @Resource
+    CustomerRepository customerRepository;
+
+    @Resource
+    DriverRepository driverRepository;
+
+    @Resource
+    RestaurantRepository restaurantRepository;
+
+    @BeforeEach()
+    public void prepareData() {
+        City tlv = new City("Tel-Aviv");
+        City jerusalem = new City("Jerusalem");
+        cityRepository.save(tlv);
+        cityRepository.save(jerusalem);
+        driverRepository.save(new Driver("Mary", tlv));
+        driverRepository.save(new Driver("Robert", jerusalem));
+        customerRepository.save(new Customer("Bach", tlv, "Sebastian Bach. Johann"));
+        customerRepository.save(new Customer("Mozart", jerusalem, "Mozart. Wolfgang Amadeus"));
+        restaurantRepository.save(new Restaurant("cafe", tlv, "Coffee shop"));
+        restaurantRepository.save(new Restaurant("meat", jerusalem, "All meat restaurant"));
+    }
+
+    @Test
+    public void testShedAboveCityLimit() {
+        City tlv = cityRepository.findByName("Tel-Aviv");
+        Customer bach = customerRepository.findByName("Bach");
+        Restaurant cafe = restaurantRepository.findByName("cafe");
+        Date now = new Date();
+
+        // two orders of Tel-Aviv are in flight, the city is at its limit
+        AdmissionController.Permit first = admissionController.tryAcquire(tlv);
+        AdmissionController.Permit second = admissionController.tryAcquire(tlv);
+        assertNotNull(first);
+        assertNotNull(second);
+
+        RuntimeException shed = assertThrows(RuntimeException.class,
+                () -> waltService.createOrderAndAssignDriver(bach, cafe, now));
+        assertEquals("ERROR : Too many orders in this city right now, please try again later",
+                shed.getMessage());
+        assertThrows(RuntimeException.class, () -> waltService.createOrderAndAssignDriver(
+                "Haydn", tlv, "Joseph Haydn", cafe, now));
+        assertNull(customerRepository.findByName("Haydn"));
+        assertEquals(2, admissionController.getShed(tlv));
+
+        // the surge in Tel-Aviv does not hold back Jerusalem
+        assertNotNull(waltService.createOrderAndAssignDriver(
+                customerRepository.findByName("Mozart"), restaurantRepository.findByName("meat"),
+                now));
+
+        first.release();
+        assertNotNull(waltService.createOrderAndAssignDriver(bach, cafe, now));
+        second.release();
+
+        assertEquals(2.0, meterRegistry.get("walt.admission.shed").tag("city", "Tel-Aviv")
+                .counter().count(), 0);
+        assertEquals(3.0, meterRegistry.get("walt.admission.admitted").tag("city", "Tel-Aviv")
+                .counter().count(), 0);
+        assertEquals(0.0, meterRegistry.get("walt.admission.in.flight").tag("city", "Tel-Aviv")
+                .gauge().value(), 0);
+        assertEquals(0.0, meterRegistry.get("walt.admission.shed").tag("city", "Jerusalem")
+                .counter().count(), 0);
+    }
+
+    @Test
+    public void testLimitAdaptsToLatency() throws InterruptedException {
+        City tlv = cityRepository.findByName("Tel-Aviv");
+        AdmissionController slowCity = new AdmissionController(true, 10, 4, 1, 8, 1,
+                new SimpleMeterRegistry());
+
+        // orders slower than the target latency cut the limit down to the minimum
+        for (int i = 0; i < 20; i++) {
+            AdmissionController.Permit permit = slowCity.tryAcquire(tlv);
+            assertNotNull(permit);
+            TimeUnit.MILLISECONDS.sleep(2);
+            permit.release();
+        }
+        assertEquals(1, slowCity.getLimit(tlv));
+        AdmissionController.Permit permit = slowCity.tryAcquire(tlv);
+        assertNull(slowCity.tryAcquire(tlv));
+        permit.release();
+
+        // fast orders do not raise a limit the city does not use
+        AdmissionController fastCity = new AdmissionController(true, 10, 4, 1, 8, 60000,
+                new SimpleMeterRegistry());
+        for (int i = 0; i < 100; i++) {
+            fastCity.tryAcquire(tlv).release();
+        }
+        assertEquals(4, fastCity.getLimit(tlv));
+
+        // fast orders filling the limit raise it, up to the maximum
+        for (int i = 0; i < 100; i++) {
+            List<AdmissionController.Permit> permits = new ArrayList<>();
+            AdmissionController.Permit next;
+            while ((next = fastCity.tryAcquire(tlv)) != null) {
+                permits.add(next);
+            }
+            permits.forEach(AdmissionController.Permit::release);
+        }
+        assertEquals(8, fastCity.getLimit(tlv));
+    }
+
+    @Test
+    public void testGlobalLimitCapsAllCities() {
+        City tlv = cityRepository.findByName("Tel-Aviv");
+        City jerusalem = cityRepository.findByName("Jerusalem");
+        AdmissionController controller = new AdmissionController(true, 3, 2, 1, 2, 60000,
+                new SimpleMeterRegistry());
+
+        AdmissionController.Permit first = controller.tryAcquire(tlv);
+        AdmissionController.Permit second = controller.tryAcquire(tlv);
+        AdmissionController.Permit third = controller.tryAcquire(jerusalem);
+        assertNotNull(first);
+        assertNotNull(second);
+        assertNotNull(third);
+
+        // Jerusalem is under its own limit, but all the cities are at the global one
+        assertEquals(2, controller.getLimit(jerusalem));
+        assertNull(controller.tryAcquire(jerusalem));
+        assertEquals(0, controller.getShed(jerusalem));
+        assertEquals(1, controller.getGlobalShed(jerusalem));
+
+        first.release();
+        assertNotNull(controller.tryAcquire(jerusalem));
+    }
+
+    @Test
+    public void testHotCityLeavesRoomForOthers() {
+        City tlv = cityRepository.findByName("Tel-Aviv");
+        City jerusalem = cityRepository.findByName("Jerusalem");
+        AdmissionController controller = new AdmissionController(true, 10, 0, 1, 0, 60000,
+                new SimpleMeterRegistry());
+        assertEquals(2, controller.getLimit(tlv));
+
+        // fast orders filling Tel-Aviv raise its limit to half of the global limit only
+        List<AdmissionController.Permit> permits = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            AdmissionController.Permit next;
+            while ((next = controller.tryAcquire(tlv)) != null) {
+                permits.add(next);
+            }
+            permits.forEach(AdmissionController.Permit::release);
+            permits.clear();
+        }
+        assertEquals(5, controller.getLimit(tlv));
+
+        // Tel-Aviv at its maximum still leaves global permits to Jerusalem
+        for (int i = 0; i < 5; i++) {
+            assertNotNull(controller.tryAcquire(tlv));
+        }
+        assertNull(controller.tryAcquire(tlv));
+        assertNotNull(controller.tryAcquire(jerusalem));
+        assertEquals(0, controller.getGlobalShed(tlv));
+        assertEquals(0, controller.getGlobalShed(jerusalem));
+    }
+}
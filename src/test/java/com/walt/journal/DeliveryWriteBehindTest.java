@@ -0,0 +1,224 @@
+package com.walt.journal;
+
+import com.walt.WaltService;
+import com.walt.dao.*;
+import com.walt.model.*;
+import com.walt.scheduling.SchedulingState;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.test.annotation.DirtiesContext;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import javax.annotation.Resource;
+
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+@SpringBootTest(properties = {
+        "walt.journal.enabled=true",
+        "walt.journal.file=${java.io.tmpdir}/walt-${random.uuid}.journal",
+        "walt.journal.size-mb=1",
+        "walt.journal.flush-interval-ms=3600000",
+        "walt.journal.dead-letter-file=${java.io.tmpdir}/walt-${random.uuid}.dead.ndjson",
+        "walt.scheduling.snapshot-file=${java.io.tmpdir}/walt-test-scheduling.snapshot"})
+@DirtiesContext(classMode = DirtiesContext.ClassMode.BEFORE_EACH_TEST_METHOD)
+public class DeliveryWriteBehindTest {
+
+    private static final int LATENCY_ORDERS = 200;
+
+    @Autowired
+    WaltService waltService;
+
+    @Autowired
+    DeliveryWriteBehind deliveryWriteBehind;
+
+    @Autowired
+    SchedulingState schedulingState;
+
+    @Resource
+    CityRepository cityRepository;
+
+    @Resource
+    CustomerRepository customerRepository;
+
+    @Resource
+    DriverRepository driverRepository;
+
+    @Resource
+    DeliveryRepository deliveryRepository;
+
+    @Resource
+    RestaurantRepository restaurantRepository;
+
+    @BeforeEach()
+    public void prepareData() {
+        City tlv = new City("Tel-Aviv");
+        cityRepository.save(tlv);
+        driverRepository.save(new Driver("Mary", tlv));
+        customerRepository.save(new Customer("Bach", tlv, "Sebastian Bach. Johann"));
+        restaurantRepository.save(new Restaurant("cafe", tlv, "Coffee shop"));
+    }
+
+    @Test
+    public void testJournalKeepsUnpersistedEntriesAfterKill() throws Exception {
+        Path file = Files.createTempFile("walt-journal", ".journal");
+        try {
+            DeliveryJournal journal = new DeliveryJournal(file, 4096);
+            for (int i = 1; i <= 5; i++) {
+                journal.sync(journal.append(i, 10 + i, 20 + i, 1000L * i, 500 * i));
+            }
+            journal.markPersisted(2);
+
+            // the process dies while writing entry 5, leaving a torn record at the tail
+            try (RandomAccessFile raf = new RandomAccessFile(file.toFile(), "rw")) {
+                raf.seek(DeliveryJournal.HEADER_BYTES + 4L * DeliveryJournal.RECORD_BYTES + 16);
+                raf.writeLong(-1L);
+            }
+
+            DeliveryJournal reopened = new DeliveryJournal(file, 4096);
+            List<JournalEntry> entries = reopened.readUnpersisted();
+            assertEquals(2, entries.size());
+            assertEquals(3, entries.get(0).getSequence());
+            assertEquals(13, entries.get(0).getRestaurantId());
+            assertEquals(1500, entries.get(0).getDistanceMeters());
+            assertEquals(4, entries.get(1).getSequence());
+            assertEquals(4, reopened.getLastSequence());
+            reopened.close();
+            journal.close();
+        } finally {
+            Files.deleteIfExists(file);
+        }
+    }
+
+    @Test
+    public void testAcceptedOrdersReplayedAfterKill() throws Exception {
+        Customer customer = customerRepository.findByName("Bach");
+        Restaurant restaurant = restaurantRepository.findByName("cafe");
+        Date date = new Date();
+
+        List<Delivery> accepted = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            accepted.add(waltService.createOrderAndAssignDriver(customer, restaurant,
+                    new Date(date.getTime() + TimeUnit.HOURS.toMillis(i))));
+        }
+        assertEquals(0, deliveryRepository.count());
+
+        deliveryWriteBehind.abandon();
+        deliveryWriteBehind.open();
+        assertEquals(3, deliveryRepository.count());
+
+        long expectedDistance = accepted.stream().mapToLong(Delivery::getDistanceMeters).sum();
+        long savedDistance = 0;
+        for (Delivery delivery : deliveryRepository.findAll()) {
+            savedDistance += delivery.getDistanceMeters();
+        }
+        assertEquals(expectedDistance, savedDistance);
+
+        // a second restart finds nothing left to replay
+        deliveryWriteBehind.abandon();
+        deliveryWriteBehind.open();
+        assertEquals(3, deliveryRepository.count());
+    }
+
+    @Test
+    public void testBadDeliveryIsDeadLettered() throws Exception {
+        City tlv = cityRepository.findByName("Tel-Aviv");
+        Customer customer = customerRepository.findByName("Bach");
+        Customer leaving = customerRepository.save(new Customer("Haydn", tlv, "Joseph Haydn"));
+        Restaurant restaurant = restaurantRepository.findByName("cafe");
+        Driver mary = driverRepository.findByName("Mary");
+        Date date = new Date();
+        Date nextHour = new Date(date.getTime() + TimeUnit.HOURS.toMillis(1));
+        Date twoHours = new Date(date.getTime() + TimeUnit.HOURS.toMillis(2));
+
+        waltService.createOrderAndAssignDriver(customer, restaurant, date);
+        waltService.createOrderAndAssignDriver(leaving, restaurant, nextHour);
+        waltService.createOrderAndAssignDriver(customer, restaurant, twoHours);
+
+        // the customer of the second delivery is gone before it is saved
+        customerRepository.delete(leaving);
+
+        // the batch fails, the deliveries around the bad one are saved anyway
+        assertEquals(2, deliveryWriteBehind.drain());
+        assertEquals(2, deliveryRepository.count());
+        assertEquals(1, deliveryWriteBehind.getDeadLetters());
+        assertEquals(0, deliveryWriteBehind.drain());
+
+        Path deadLetterFile = Paths.get((String) ReflectionTestUtils.getField(
+                deliveryWriteBehind, "deadLetterFile"));
+        try {
+            List<String> deadLetters = Files.readAllLines(deadLetterFile);
+            assertEquals(1, deadLetters.size());
+            assertTrue(deadLetters.get(0).contains("\"customer\":\"Haydn\""));
+        } finally {
+            Files.deleteIfExists(deadLetterFile);
+        }
+
+        // the dead letter no longer holds its slot, and nothing is left to replay
+        assertTrue(schedulingState.isAvailable(mary, nextHour));
+        assertFalse(schedulingState.isAvailable(mary, twoHours));
+        deliveryWriteBehind.abandon();
+        deliveryWriteBehind.open();
+        assertEquals(2, deliveryRepository.count());
+    }
+
+    @Test
+    public void testWriteBehindLatency() {
+        Customer customer = customerRepository.findByName("Bach");
+        Restaurant restaurant = restaurantRepository.findByName("cafe");
+        long base = new Date().getTime();
+
+        // the same order path, with the journal and with a synchronous save, warmed up first
+        measureOrders(customer, restaurant, base, LATENCY_ORDERS);
+        assertEquals(LATENCY_ORDERS, deliveryWriteBehind.drain());
+        ReflectionTestUtils.setField(deliveryWriteBehind, "enabled", false);
+        try {
+            measureOrders(customer, restaurant, base + TimeUnit.HOURS.toMillis(LATENCY_ORDERS),
+                    LATENCY_ORDERS);
+            long syncNanos = measureOrders(customer, restaurant,
+                    base + TimeUnit.HOURS.toMillis(2 * LATENCY_ORDERS), LATENCY_ORDERS);
+            ReflectionTestUtils.setField(deliveryWriteBehind, "enabled", true);
+            long journalNanos = measureOrders(customer, restaurant,
+                    base + TimeUnit.HOURS.toMillis(3 * LATENCY_ORDERS), LATENCY_ORDERS);
+
+            // the journaled orders did not touch the delivery table until the flush
+            assertEquals(3 * LATENCY_ORDERS, deliveryRepository.count());
+            assertEquals(LATENCY_ORDERS, deliveryWriteBehind.drain());
+            assertEquals(4 * LATENCY_ORDERS, deliveryRepository.count());
+
+            System.out.printf("%nOrder latency with walt.journal.enabled=true: %d us, with " +
+                            "walt.journal.enabled=false: %d us (%.2fx)%n",
+                    TimeUnit.NANOSECONDS.toMicros(journalNanos / LATENCY_ORDERS),
+                    TimeUnit.NANOSECONDS.toMicros(syncNanos / LATENCY_ORDERS),
+                    (double) syncNanos / journalNanos);
+        } finally {
+            ReflectionTestUtils.setField(deliveryWriteBehind, "enabled", true);
+        }
+    }
+
+    /**
+     * this method places orders in consecutive hours from the given time
+     *
+     * @return the total time they took, in nanoseconds
+     */
+    private long measureOrders(Customer customer, Restaurant restaurant, long from, int orders) {
+        long nanos = 0;
+        for (int i = 0; i < orders; i++) {
+            Date date = new Date(from + TimeUnit.HOURS.toMillis(i));
+            long start = System.nanoTime();
+            waltService.createOrderAndAssignDriver(customer, restaurant, date);
+            nanos += System.nanoTime() - start;
+        }
+        return nanos;
+    }
+}
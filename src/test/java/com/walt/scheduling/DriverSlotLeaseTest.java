@@ -0,0 +1,213 @@
+package com.walt.scheduling;
+
+import com.walt.WaltApplication;
+import com.walt.WaltService;
+import com.walt.dao.*;
+import com.walt.model.*;
+import org.assertj.core.util.Lists;
+import org.h2.tools.Server;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.boot.WebApplicationType;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.context.ConfigurableApplicationContext;
+import org.springframework.jdbc.core.JdbcTemplate;
+
+import java.net.ServerSocket;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+/**
+ * two application nodes sharing one H2 server, both taking orders for the same drivers.
+ */
+public class DriverSlotLeaseTest {
+
+    private static final int DRIVERS = 5;
+    private static final int HOURS = 20;
+    private static final int ORDERS_PER_SLOT_PER_NODE = DRIVERS;
+    private static final int THREADS_PER_NODE = 4;
+    private static final String WALT_SERVICE_BEAN = "waltServiceImpl";
+
+    private Server server;
+    private ConfigurableApplicationContext node1;
+    private ConfigurableApplicationContext node2;
+
+    @BeforeEach
+    public void startNodes() throws Exception {
+        int port;
+        try (ServerSocket socket = new ServerSocket(0)) {
+            port = socket.getLocalPort();
+        }
+        server = Server.createTcpServer("-tcpPort", String.valueOf(port), "-ifNotExists").start();
+        String url = "jdbc:h2:tcp://localhost:" + port + "/mem:walt-lease;DB_CLOSE_DELAY=-1";
+        node1 = startNode(url, "create");
+        node2 = startNode(url, "none");
+    }
+
+    @AfterEach
+    public void stopNodes() {
+        node2.close();
+        node1.close();
+        server.stop();
+    }
+
+    @Test
+    public void testNoDoubleBookingAcrossNodes() throws Exception {
+        City tlv = node1.getBean(CityRepository.class).save(new City("Tel-Aviv"));
+        List<Driver> drivers = new ArrayList<>();
+        for (int i = 0; i < DRIVERS; i++) {
+            drivers.add(new Driver("Driver" + i, tlv));
+        }
+        node1.getBean(DriverRepository.class).saveAll(drivers);
+        Customer customer = node1.getBean(CustomerRepository.class)
+                .save(new Customer("Bach", tlv, "Sebastian Bach. Johann"));
+        Restaurant restaurant = node1.getBean(RestaurantRepository.class)
+                .save(new Restaurant("cafe", tlv, "Coffee shop"));
+
+        // every slot gets twice as many orders as there are drivers, half of them on each node
+        Date start = SchedulingState.slotStart(SchedulingState.toSlot(new Date()));
+        List<Date> orders = new ArrayList<>();
+        for (int hour = 0; hour < HOURS; hour++) {
+            for (int i = 0; i < ORDERS_PER_SLOT_PER_NODE; i++) {
+                orders.add(new Date(start.getTime() + TimeUnit.HOURS.toMillis(hour) + i));
+            }
+        }
+        AtomicInteger accepted = new AtomicInteger();
+        AtomicInteger rejected = new AtomicInteger();
+        ExecutorService executor = Executors.newFixedThreadPool(2 * THREADS_PER_NODE);
+        long begin = System.nanoTime();
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+            // by name, the scan also picks up the WaltService bean of WaltTest's configuration
+            for (WaltService waltService : Lists.newArrayList(
+                    node1.getBean(WALT_SERVICE_BEAN, WaltService.class),
+                    node2.getBean(WALT_SERVICE_BEAN, WaltService.class))) {
+                for (int t = 0; t < THREADS_PER_NODE; t++) {
+                    int thread = t;
+                    futures.add(executor.submit(() -> {
+                        for (int i = thread; i < orders.size(); i += THREADS_PER_NODE) {
+                            try {
+                                waltService.createOrderAndAssignDriver(customer, restaurant,
+                                        orders.get(i));
+                                accepted.incrementAndGet();
+                            } catch (RuntimeException e) {
+                                rejected.incrementAndGet();
+                            }
+                        }
+                    }));
+                }
+            }
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } finally {
+            executor.shutdown();
+        }
+        long elapsedMillis = Math.max(1, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - begin));
+
+        // each slot is full, and no driver got two deliveries in the same hour
+        assertEquals(DRIVERS * HOURS, accepted.get());
+        assertEquals(DRIVERS * HOURS, rejected.get());
+        assertEquals(DRIVERS * HOURS, node1.getBean(DeliveryRepository.class).count());
+        assertEquals(Integer.valueOf(DRIVERS * HOURS), node1.getBean(JdbcTemplate.class)
+                .queryForObject("SELECT COUNT(*) FROM driver_slot_lease", Integer.class));
+        for (Driver driver : drivers) {
+            List<Delivery> driverDeliveries = node1.getBean(DeliveryRepository.class)
+                    .findDeliveriesByDriver(driver);
+            assertEquals(HOURS, driverDeliveries.size());
+            assertEquals(HOURS, driverDeliveries.stream()
+                    .map(delivery -> SchedulingState.toSlot(delivery.getDeliveryTime()))
+                    .distinct().count());
+        }
+
+        long conflicts = node1.getBean(DriverSlotLeases.class).getConflicts() +
+                node2.getBean(DriverSlotLeases.class).getConflicts();
+        System.out.printf("%d orders on 2 nodes in %d ms (%.0f orders/s), %d accepted, " +
+                        "%d lease conflicts%n", orders.size() * 2, elapsedMillis,
+                orders.size() * 2 * 1000.0 / elapsedMillis, accepted.get(), conflicts);
+    }
+
+    @Test
+    public void testMoveOntoLeasedSlotFails() {
+        City tlv = node1.getBean(CityRepository.class).save(new City("Tel-Aviv"));
+        Driver mary = node1.getBean(DriverRepository.class).save(new Driver("Mary", tlv));
+        Customer customer = node1.getBean(CustomerRepository.class)
+                .save(new Customer("Bach", tlv, "Sebastian Bach. Johann"));
+        Restaurant restaurant = node1.getBean(RestaurantRepository.class)
+                .save(new Restaurant("cafe", tlv, "Coffee shop"));
+        Date date = SchedulingState.slotStart(SchedulingState.toSlot(new Date()));
+        Date nextHour = new Date(date.getTime() + TimeUnit.HOURS.toMillis(1));
+
+        Delivery delivery = node1.getBean(WALT_SERVICE_BEAN, WaltService.class)
+                .createOrderAndAssignDriver(customer, restaurant, date);
+        node2.getBean(WALT_SERVICE_BEAN, WaltService.class)
+                .createOrderAndAssignDriver(customer, restaurant, nextHour);
+
+        // node 1 does not know about node 2's delivery, the lease table does
+        DeliveryRepository deliveryRepository = node1.getBean(DeliveryRepository.class);
+        delivery.setDeliveryTime(nextHour);
+        assertThrows(RuntimeException.class, () -> deliveryRepository.save(delivery));
+        assertEquals(date, deliveryRepository.findById(delivery.getId())
+                .map(Delivery::getDeliveryTime).map(time -> new Date(time.getTime()))
+                .orElse(null));
+        assertFalse(node1.getBean(SchedulingState.class).isAvailable(mary, date));
+    }
+
+    @Test
+    public void testOrphanLeaseIsReclaimed() {
+        City tlv = node1.getBean(CityRepository.class).save(new City("Tel-Aviv"));
+        Driver mary = node1.getBean(DriverRepository.class).save(new Driver("Mary", tlv));
+        Driver john = node1.getBean(DriverRepository.class).save(new Driver("John", tlv));
+        Customer customer = node1.getBean(CustomerRepository.class)
+                .save(new Customer("Bach", tlv, "Sebastian Bach. Johann"));
+        Restaurant restaurant = node1.getBean(RestaurantRepository.class)
+                .save(new Restaurant("cafe", tlv, "Coffee shop"));
+        long slot = SchedulingState.toSlot(new Date()) + 1;
+        Date nextHour = SchedulingState.slotStart(slot);
+        Delivery delivery = node1.getBean(WALT_SERVICE_BEAN, WaltService.class)
+                .createOrderAndAssignDriver(customer, restaurant, nextHour);
+        Long freeDriverId = delivery.getDriver().getId().equals(mary.getId()) ? john.getId() :
+                mary.getId();
+
+        // a node crashed after claiming a lease, before its delivery committed
+        JdbcTemplate jdbcTemplate = node1.getBean(JdbcTemplate.class);
+        jdbcTemplate.update(DriverSlotLeases.INSERT_LEASE, freeDriverId, slot,
+                new Date(System.currentTimeMillis() - TimeUnit.HOURS.toMillis(1)));
+        // an order claimed this one just now, its delivery is not committed yet
+        jdbcTemplate.update(DriverSlotLeases.INSERT_LEASE, freeDriverId, slot + 1, new Date());
+
+        node1.getBean(DriverSlotLeases.class).purge();
+
+        assertEquals(Integer.valueOf(0), jdbcTemplate.queryForObject(
+                "SELECT COUNT(*) FROM driver_slot_lease WHERE driver_id = ? AND slot = ?",
+                Integer.class, freeDriverId, slot));
+        assertEquals(Integer.valueOf(2), jdbcTemplate.queryForObject(
+                "SELECT COUNT(*) FROM driver_slot_lease", Integer.class));
+        assertNotNull(node2.getBean(WALT_SERVICE_BEAN, WaltService.class)
+                .createOrderAndAssignDriver(customer, restaurant, nextHour));
+    }
+
+    /**
+     * the settings are passed as command line arguments, since default properties would be
+     * overridden by application.properties
+     */
+    private static ConfigurableApplicationContext startNode(String url, String ddlAuto) {
+        return new SpringApplicationBuilder(WaltApplication.class)
+                .web(WebApplicationType.NONE)
+                .run("--spring.datasource.url=" + url,
+                        "--spring.datasource.username=sa",
+                        "--spring.datasource.password=",
+                        "--spring.jpa.hibernate.ddl-auto=" + ddlAuto,
+                        "--spring.jmx.enabled=false",
+                        "--walt.lease.enabled=true");
+    }
+}